@@ -8,8 +8,10 @@ import android.content.Intent;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.provider.Settings;
 import android.view.View;
 import android.view.WindowManager;
@@ -17,29 +19,40 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
+import de.uvwxy.footpath.core.FixScheduler;
+import de.uvwxy.footpath.core.LocalFrame;
+import de.uvwxy.footpath.core.LoopCloser;
+import de.uvwxy.footpath.core.ParticleFilter;
+import de.uvwxy.footpath.core.SampleRing;
 import de.uvwxy.footpath.core.StepDetection;
+import de.uvwxy.footpath.core.StepDetectors;
 import de.uvwxy.footpath.core.StepTrigger;
+import de.uvwxy.footpath.core.TraceRecorder;
 import de.uvwxy.footpath.gui.Calibrator;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.*;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainActivity extends Activity implements StepTrigger {
 
     public static final String CALIBRATION = "TrailblazerSettings"; // the name of our sharedPreferences file
-    public static final String SESSIONS = "sessions.txt"; // where we store loc data
+    public static final String SESSIONS = "sessions"; // directory where we store loc data, see SessionStore
+    public static final String LEGACY_SESSIONS = "sessions.txt"; // single JSON array used by older versions
+    public static final String LEGACY_LOG = "sessions.log"; // single framed log used by older versions
+    public static final String RECORDING = "session.journal"; // events of the running session, see SessionJournal
+    public static final String RECOVERED = "session.recovered"; // journals left by a crash, .1, .2, ..., waiting for the user
+    public static final String TRACE = "trace.ring"; // raw sensor values of the last session, see TraceRecorder
+    public static final int TRACE_RECORDS = 1 << 20; // ~24 MB, over 30 min of all sensors at 200 Hz
     public static final String SERVER = "http://www.skalon.com/trailblazer/store.php"; // server address
-    public static final int GPS_FREQ = 6000; //GPS update frequency in milliseconds
+    public static final int STATUS_FREQ = 250; //minimum time between status updates in milliseconds
+    public static final int CONNECT_TIMEOUT = 15000; //give up connecting after this many milliseconds
+    public static final int READ_TIMEOUT = 30000; //give up on a silent server after this many milliseconds
 
     // location manager for managing GPS location updates
     LocationManager locationManager;
@@ -48,14 +61,24 @@ public class MainActivity extends Activity implements StepTrigger {
     float alpha;    // value for low pass filter
     int stepTimeoutM;   // distance in ms between each step
     float stride;   // stride length
+    boolean eventDriven; // detect steps on each sensor event instead of a timer
+    String detector; // name of the step detection algorithm, see StepDetectors
+    boolean gyro; // fuse the gyroscope into the heading
+    boolean trace; // record raw sensor values for replaying
+    int budget; // storage for saved sessions in MB
+    String evict; // which sessions to drop over budget, see SessionStore
+    boolean gzip; // compress uploads
+    int particles; // particles of the GPS and step fusion, 0 turns it off
+    int fusionThreads; // threads for the particle updates
+    float simplify; // steps off the recorded track by at most this many m are dropped, 0 keeps all
 
     boolean started = false; // check if started
     boolean stepped = false; // in a given trial, see if a step or reading has been taken
-    boolean dataPause = false; // pause data collection during labeling
+    volatile boolean dataPause = false; // pause data collection during labeling
     boolean appIsPausing = false; // check if onPause has been called
 
     double initHead = -1;    // note down initial heading
-    double lastHead = -1;    // save most recent heading
+    volatile double lastHead = -1;    // save most recent heading
 
     double locX = 0;
     double locY = 0;
@@ -65,9 +88,23 @@ public class MainActivity extends Activity implements StepTrigger {
     double absLocY = 0;
     double absLocZ = 0;
 
-    double latitude = -1;
-    double longitude = -1;
-    float accuracy = -1;
+    volatile double latitude = -1;
+    volatile double longitude = -1;
+    volatile float accuracy = -1;
+
+    //fused position, written by the worker
+    volatile double fusedLat = -1;
+    volatile double fusedLon = -1;
+    volatile double fusedSpread = -1;
+
+    //latest state shown in the status text, written by the worker
+    volatile double statusHeading = 0;
+    volatile double statusX = 0;
+    volatile double statusY = 0;
+    volatile double statusCorrectedX = 0;
+    volatile double statusCorrectedY = 0;
+    volatile int statusClosures = 0;
+    volatile String statusGps = "";
 
     String floor; // floor descriptor, like 1 or Basement
     String startLocation; // starting location for mapping
@@ -78,7 +115,28 @@ public class MainActivity extends Activity implements StepTrigger {
     boolean devMode = false;
 
     StepDetection stepDetection; // global step detector
-    JSONArray sessionData = new JSONArray(); // store session data
+    volatile TraceRecorder traceRecorder; // raw sensor recording, null when off
+    SessionStore sessionStore; // saved sessions
+    SessionStore.Entry sessionEntry; // manifest entry of the running session, only touched by the worker
+    SessionRecorder recorder; // records the running session, only touched by the worker
+    ParticleFilter fusion; // fuses steps and fixes, null when off, only touched by the worker
+    final LocalFrame frame = new LocalFrame(); // metric frame at the first good fix, only touched by the worker
+    final LoopCloser loops = new LoopCloser(); // corrects drift with repeated labels, only touched by the worker
+    final FixScheduler gps = new FixScheduler(); // when to ask for GPS fixes, only touched by the worker
+    long gpsInterval = -1; // min time of the registered GPS request in ms, -1 when off, only touched by the worker
+    ExecutorService fusionExecutor; // runs particle updates when fusionThreads > 1
+    UploadQueue uploads; // sends saved sessions in the background
+
+    //worker thread that does dead reckoning and records events
+    HandlerThread workerThread;
+    Handler worker;
+    Handler uiHandler;
+
+    //steps are handed from the detection thread to the worker through this ring
+    final SampleRing stepRing = new SampleRing(256);
+    final AtomicBoolean drainPending = new AtomicBoolean(false);
+    final AtomicBoolean statusPending = new AtomicBoolean(false);
+    TextView status;
 
     // power manager instantiations
     //PowerManager pm;
@@ -104,6 +162,61 @@ public class MainActivity extends Activity implements StepTrigger {
 
         //copy context to this
         thisCopy = this;
+
+        status = (TextView) findViewById(R.id.status);
+        uiHandler = new Handler(Looper.getMainLooper());
+        workerThread = new HandlerThread("SessionWorker");
+        workerThread.start();
+        worker = new Handler(workerThread.getLooper());
+
+        sessionStore = new SessionStore(new File(getFilesDir(), SESSIONS));
+        recorder = new SessionRecorder(getFileStreamPath(RECORDING));
+
+        //one pooled client for all uploads, connections are reused between chunks
+        int parallel = getSharedPreferences(CALIBRATION, 0).getInt("uploads", 3);
+        uploads = new UploadQueue(sessionStore, UploadQueue.pooledClient(parallel, CONNECT_TIMEOUT, READ_TIMEOUT),
+                SERVER, getDeviceIDHash(), parallel, uploadListener);
+
+        //move sessions saved by older versions into the store
+        //and look for a session cut short by a crash, before any new session starts
+        worker.post(new Runnable() {
+            public void run() {
+                try {
+                    sessionStore.importLegacy(getFileStreamPath(LEGACY_SESSIONS));
+                    sessionStore.importLegacy(getFileStreamPath(LEGACY_LOG));
+                }
+
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                recoverSession();
+
+                //finish uploads cut short last time
+                uploads.resume(getSharedPreferences(CALIBRATION, 0).getBoolean("gzip", true));
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        //quit() drops what is still queued, stopGps() among it, and the updates were
+        //requested on the worker's looper: off right away, and again after the queued
+        //work, which may turn it back on, then the worker quits
+        locationManager.removeUpdates(locationListener);
+        worker.post(new Runnable() {
+            public void run() {
+                stopGps();
+                workerThread.quit();
+            }
+        });
+        uploads.shutdown();
+
+        if (fusionExecutor != null) {
+            fusionExecutor.shutdown();
+        }
     }
 
     protected void onResume() {
@@ -132,26 +245,47 @@ public class MainActivity extends Activity implements StepTrigger {
 
     /**
      * Notes on data cache/post cycle (steps 2-4 dispatched from debrief or alerts):
-     * 1. store readings in JSONObject sessionData (trigger)
-     * 2. onPause or onDestroy, append sessionData to session.txt (writeJSONFile)
+     * 1. record readings with SessionRecorder (trigger, on the worker thread)
+     * 2. onPause or onDestroy, save the recording in its own file (writeSession)
      * 3. prompt user to keep readings from trial (saveAlert)
      * 4. prompt user to send readings to server (sendAlert)
-     * 5a. if yes: attempt to send readings to server (uploadJSONFile)
-     * 5aa. if success: blank session.txt, toast (blank, showToast)
-     * 5ab. if failure: toast (showToast)
+     * 5a. if yes: attempt to send readings to server (UploadQueue)
+     * 5aa. if success: delete uploaded sessions, toast (SessionStore.markUploaded, showToast)
+     * 5ab. if failure: retry with backoff, toast, go on after the next start (showToast)
      * 5b. if no: do nothing (none)
      */
 
     /**
      * Notes on JSON event format (these get packaged together and sent to server):
      * 1. steps look like {'type' : 'relative', 'x' : 123, 'y' : 123, 'absX' : 0,
-     *                      'absY' : 174, 'time' : 12312, 'heading' : 180}
+     *                      'absY' : 174, 'time' : 12312, 'heading' : 180, 'east' : 3.2, 'north' : 170.5}
      * 2. GPS locations are like {'type' : 'absolute', 'latitude' : 31.41412, 'longitude' : 56.12331,
-     *                          'heading' : 167, 'time' : 12311, 'accuracy' : 12}
+     *                          'heading' : 167, 'time' : 12311, 'accuracy' : 12, 'east' : 4.1, 'north' : 168}
      * 3. labels look like {'type' : 'label', 'content' : 'Room 201', 'time' : 12415}
      * 4. start data looks like {'type' : 'start', 'client' : HASH, 'location' : 'Hunt Library, 'floor' : '1',
      *                          'start' : 'Front Door', 'calibration' : {'a' : 0.45, 'peak' : 1.2,
-     *                          'timeout' : 333, 'stride' : 0.74}}
+     *                          'timeout' : 333, 'stride' : 0.74, 'eventDriven' : false,
+     *                          'detector' : 'peak', 'gyro' : false, 'trace' : false, 'particles' : 500},
+     *                          'simplify' : 0.5}; with a 'simplify' above 0, steps are dropped as long as
+     *                          every dropped one is within that many m of the line between the kept ones,
+     *                          the step before any other event is kept
+     * 5. after each GPS location, the fused position is like {'type' : 'fused', 'time' : 12311,
+     *                          'latitude' : 31.41409, 'longitude' : 56.12335, 'east' : 3.9,
+     *                          'north' : 170.2, 'spread' : 6.2, 'bias' : 8.5, 'scale' : 1.06}
+     * 6. the first GPS location with an accuracy of 20 m or better anchors a local frame, like
+     *                          {'type' : 'frame', 'latitude' : 31.41262, 'longitude' : 56.12328};
+     *                          'east' and 'north' are in m from there, and only on events after it
+     * 7. a label given before in the session closes a loop, right after it comes
+     *                          {'type' : 'closure', 'time' : 12415, 'label' : 'Room 201', 'from' : 11020,
+     *                          'to' : 12410, 'gapX' : 2.4, 'gapY' : -1.1, 'turn' : -6.3}; 'from' and 'to'
+     *                          are the times of the steps at the two labels, 'gapX' and 'gapY' how far apart
+     *                          they were; the steps in between are turned counterclockwise by 'turn' degrees
+     *                          times the fraction of the distance walked from 'from', the gap left is spread
+     *                          the same way, later steps keep the turn and shift of 'to', see LoopCloser
+     * 8. at the end of a session, how much GPS was used is like {'type' : 'gps', 'time' : 13200,
+     *                          'requested' : 48, 'delivered' : 41, 'used' : 30, 'missed' : 7, 'on' : 412000};
+     *                          fixes requested are the delivered and the missed ones, used ones are
+     *                          accurate to 30 m, 'on' is the ms GPS was on, see FixScheduler
      */
 
     /**
@@ -176,10 +310,6 @@ public class MainActivity extends Activity implements StepTrigger {
         //load settings
         loadSettings();
 
-        //listen to location updates, from network and GPS, but network is pretty inaccurate
-        //locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 0, locationListener);
-        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, GPS_FREQ, 0, locationListener);
-
         //set default values
         //if no dialog response given
 
@@ -196,7 +326,7 @@ public class MainActivity extends Activity implements StepTrigger {
         }
 
         //create object to hold initializing data
-        JSONObject init = new JSONObject();
+        final JSONObject init = new JSONObject();
 
         try {
             init.put("type", "start");
@@ -205,18 +335,67 @@ public class MainActivity extends Activity implements StepTrigger {
             init.put("floor", floor);
             init.put("start", startLocation);
             init.put("calibration", loadSettingsToJSON());
+            init.put("simplify", simplify);
         }
 
         catch (JSONException e){
             //just needed so Java/IDEA won't complain
         }
 
-        //add initializing data
-        //to session variable
-        sessionData.put(init);
+        //manifest entry, so saved sessions can be listed without reading them
+        final SessionStore.Entry entry = new SessionStore.Entry();
+        entry.id = System.currentTimeMillis();
+        entry.start = entry.id;
+        entry.location = mapLocation;
+        entry.floor = floor;
+        entry.startPoint = startLocation;
+
+        //the fusion is seeded with the session, so replaying it gives the same track
+        final ParticleFilter filter;
+        if (particles > 0) {
+            if (fusionThreads > 1 && fusionExecutor == null) {
+                fusionExecutor = Executors.newFixedThreadPool(fusionThreads);
+            }
+            filter = new ParticleFilter(particles, fusionExecutor, fusionThreads, entry.id);
+        } else {
+            filter = null;
+        }
+
+        //session data belongs to the worker, so start the session there
+        //before any fix or step can arrive
+        //listen to location updates from GPS, network is pretty inaccurate
+        //fixes are delivered on the worker thread, how often is up to FixScheduler
+        worker.post(new Runnable() {
+            public void run() {
+                fusion = filter;
+                startSession(init, entry);
+                gps.reset(System.currentTimeMillis());
+                scheduleGps();
+            }
+        });
+
+        //map the trace file on the worker, the hooks record once it is set
+        if (trace) {
+            worker.post(new Runnable() {
+                public void run() {
+                    TraceRecorder tr = new TraceRecorder(getFileStreamPath(TRACE), TRACE_RECORDS);
+
+                    try {
+                        tr.open();
+                        traceRecorder = tr;
+                    }
+
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
 
         //create step detection instance and load it
-        stepDetection = new StepDetection(this, this, alpha, peak, stepTimeoutM);
+        stepDetection = new StepDetection(this, this, alpha, peak, stepTimeoutM, eventDriven);
+        stepDetection.setDetector(StepDetectors.create(detector, peak));
+        stepDetection.setGyroFusion(gyro);
         stepDetection.load();
 
         //enable and disable label and calibrate buttons, respectively
@@ -228,12 +407,26 @@ public class MainActivity extends Activity implements StepTrigger {
         //wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "TrailOn");
         //wl.acquire(); //actually start the wake-lock
 
-        TextView status = (TextView) findViewById(R.id.status);
         status.setText("Waiting for movement.");
 
         Button sButton = (Button) findViewById(R.id.run);
         sButton.setText("Stop");
         started = true;
+    }
+
+    /**
+     * Reset the position and record the first events of a session, on the worker.
+     */
+
+    private void startSession(JSONObject init, SessionStore.Entry entry) {
+        sessionEntry = entry;
+
+        //add initializing data
+        //to the new recording
+        recorder.start(simplify);
+        recorder.event(init.toString());
+        //once per session, and a recovered journal is nothing without it
+        recorder.commit();
 
         //reset initial position data
         initHead = -1;    // note down initial heading
@@ -250,27 +443,31 @@ public class MainActivity extends Activity implements StepTrigger {
         longitude = -1;
         accuracy = -1;
 
-        //create object for fake origin step
+        fusedLat = -1;
+        fusedLon = -1;
+        fusedSpread = -1;
+        frame.reset();
+
+        //add fake origin step to data
         //all location variables should be zero
-        JSONObject step = new JSONObject();
+        long now = System.currentTimeMillis();
+        recorder.step(now, initHead, locX, locY, absLocX, absLocY);
+        loops.reset(now);
+        statusClosures = 0;
 
-        try {
-            step.put("time", System.currentTimeMillis());
-            step.put("type", "relative");
-            step.put("heading", initHead);
-            step.put("x", locX);
-            step.put("y", locY);
-            step.put("absX", absLocX);
-            step.put("absY", absLocY);
-        }
+        worker.removeCallbacks(commitTask);
+        worker.postDelayed(commitTask, SessionRecorder.COMMIT_MS);
+    }
 
-        catch (JSONException e){
-            //just needed so Java/IDEA won't complain
+    //commits the recording now and then, so events reach the disk while standing still
+    final Runnable commitTask = new Runnable() {
+        public void run() {
+            if (recorder.isRecording()) {
+                recorder.commitIfDue(System.currentTimeMillis());
+                worker.postDelayed(this, SessionRecorder.COMMIT_MS);
+            }
         }
-
-        //add fake step to data
-        sessionData.put(step);
-    }
+    };
 
     /**
      * Called to get things stopped.
@@ -281,6 +478,19 @@ public class MainActivity extends Activity implements StepTrigger {
         stepDetection = null;
         started = false;
 
+        //stop the trace recording and write it back, unload() returned once
+        //the sensor and timer threads stopped, so their last records are in
+        worker.post(new Runnable() {
+            public void run() {
+                TraceRecorder tr = traceRecorder;
+                traceRecorder = null;
+
+                if (tr != null) {
+                    tr.close();
+                }
+            }
+        });
+
         //enable and disable label and calibrate buttons, respectively
         Button label = (Button) findViewById(R.id.tools);
         label.setText("Calibrate");
@@ -293,19 +503,33 @@ public class MainActivity extends Activity implements StepTrigger {
         //cancel wake-lock
         //wl.release();
 
-        TextView status = (TextView) findViewById(R.id.status);
         status.setText("No errors detected.");
 
-        //un-register location listener
-        locationManager.removeUpdates(locationListener);
-
         Button sButton = (Button) findViewById(R.id.run);
         sButton.setText("Start");
 
-        if (stepped) {
-            saveAlert(); // step three
-            stepped = false; // trial is over
-        }
+        //let the worker finish the steps still queued before asking to save
+        worker.post(new Runnable() {
+            public void run() {
+                drainSteps.run();
+                stopGps();
+
+                if (stepped) {
+                    stepped = false; // trial is over
+
+                    runOnUiThread(new Runnable() {
+                        public void run() {
+                            saveAlert(); // step three
+                        }
+                    });
+                }
+
+                //nothing worth keeping, don't leave the journal open
+                else {
+                    recorder.discard();
+                }
+            }
+        });
     }
 
     /**
@@ -399,6 +623,19 @@ public class MainActivity extends Activity implements StepTrigger {
         peak = getSharedPreferences(CALIBRATION, 0).getFloat("peak", 1.2f);
         stepTimeoutM = getSharedPreferences(CALIBRATION, 0).getInt("timeout", 333);
         stride = getSharedPreferences(CALIBRATION,0).getFloat("stride", 0.74f);
+        eventDriven = getSharedPreferences(CALIBRATION, 0).getBoolean("eventDriven", false);
+        //older settings only had a switch for the adaptive threshold
+        boolean adaptive = getSharedPreferences(CALIBRATION, 0).getBoolean("adaptive", false);
+        detector = getSharedPreferences(CALIBRATION, 0).getString("detector",
+                adaptive ? StepDetectors.ADAPTIVE : StepDetectors.PEAK);
+        gyro = getSharedPreferences(CALIBRATION, 0).getBoolean("gyro", false);
+        trace = getSharedPreferences(CALIBRATION, 0).getBoolean("trace", false);
+        budget = getSharedPreferences(CALIBRATION, 0).getInt("budget", 64);
+        evict = getSharedPreferences(CALIBRATION, 0).getString("evict", SessionStore.OLDEST_FIRST);
+        gzip = getSharedPreferences(CALIBRATION, 0).getBoolean("gzip", true);
+        particles = getSharedPreferences(CALIBRATION, 0).getInt("particles", 500);
+        fusionThreads = getSharedPreferences(CALIBRATION, 0).getInt("fusionThreads", 1);
+        simplify = getSharedPreferences(CALIBRATION, 0).getFloat("simplify", 0f);
     }
 
     /**
@@ -414,6 +651,11 @@ public class MainActivity extends Activity implements StepTrigger {
             settings.put("peak", peak);
             settings.put("timeout", stepTimeoutM);
             settings.put("stride", stride);
+            settings.put("eventDriven", eventDriven);
+            settings.put("detector", detector);
+            settings.put("gyro", gyro);
+            settings.put("trace", trace);
+            settings.put("particles", particles);
         }
 
         catch (JSONException e){
@@ -430,18 +672,33 @@ public class MainActivity extends Activity implements StepTrigger {
 
     @Override
     public void trigger(long nowMS, double compDir) {
-        //must be declared final to use in anon class
-        final long nowMSF = nowMS;
-        final double compDirF = compDir;
+        //hand the step to the worker without allocating
+        //a burst of steps is drained by a single post
+        stepRing.offer(0, nowMS, (float) compDir, 0, 0);
 
-        runOnUiThread(new Runnable() {
-            public void run() {
-                onStep(nowMSF, compDirF);
-            }
-        });
+        if (drainPending.compareAndSet(false, true)) {
+            worker.post(drainSteps);
+        }
     }
 
-    //Actually handle trigger steps.
+    //Runs on the worker, handles all queued steps.
+    final Runnable drainSteps = new Runnable() {
+        public void run() {
+            drainPending.set(false);
+
+            if (stepRing.drain(stepSink) > 0) {
+                requestStatus();
+            }
+        }
+    };
+
+    final SampleRing.Sink stepSink = new SampleRing.Sink() {
+        public void onSample(int type, long time, float x, float y, float z) {
+            onStep(time, x);
+        }
+    };
+
+    //Actually handle trigger steps, on the worker thread.
     public void onStep(long nowMS, double compDir){
         if (dataPause){
             return;
@@ -460,33 +717,96 @@ public class MainActivity extends Activity implements StepTrigger {
         absLocX += stride * Math.sin(absHeading);
         absLocY += stride * Math.cos(absHeading);
 
-        JSONObject step = new JSONObject();
         stepped = true; // step has been taken
+        recorder.step(nowMS, compDir, locX, locY, absLocX, absLocY); //add step to data
+
+        if (fusion != null) {
+            fusion.step(compDir, stride);
+        }
+
+        loops.step(nowMS, absLocX, absLocY);
+
+        //walking again after standing, the next fix is wanted sooner
+        if (gps.onStep(System.currentTimeMillis()) && gpsInterval != 0) {
+            scheduleGps();
+        }
+
+        statusHeading = compDir;
+        statusX = locX;
+        statusY = locY;
+        statusCorrectedX = loops.getX();
+        statusCorrectedY = loops.getY();
+    }
+
+    //A label seen before in this session closes a loop, on the worker thread.
+    private void closeLoop(long time, String content) {
+        if (!loops.label(content)) {
+            return;
+        }
+
+        //record the correction, so the server can apply it the same way
+        JSONObject closure = new JSONObject();
 
         try {
-            step.put("time", nowMS);
-            step.put("type", "relative");
-            step.put("heading", compDir);
-            step.put("x", locX);
-            step.put("y", locY);
-            step.put("absX", absLocX);
-            step.put("absY", absLocY);
+            closure.put("type", "closure");
+            closure.put("time", time);
+            closure.put("label", content);
+            closure.put("from", loops.getClosedFrom());
+            closure.put("to", loops.getClosedTo());
+            closure.put("gapX", loops.getGapX());
+            closure.put("gapY", loops.getGapY());
+            closure.put("turn", loops.getGapTurn());
+            recorder.event(closure.toString());
         }
 
         catch (JSONException e){
             //just needed so Java/IDEA won't complain
         }
 
-        sessionData.put(step); //add step to data object
-        TextView status = (TextView) findViewById(R.id.status);
-        status.setText("Heading: " + tr(Double.toString(compDir), 3) + "\nX-Axis: " + tr(Double.toString(locX), 5)
-                + "\nY-Axis: " + tr(Double.toString(locY), 5) + "\n\nLat: " + tr(Double.toString(latitude), 7)
-                + "\nLon: " + tr(Double.toString(longitude), 7) + "\nAccuracy: " + Float.toString(accuracy));
+        statusCorrectedX = loops.getX();
+        statusCorrectedY = loops.getY();
+        statusClosures = loops.getClosures();
+        requestStatus();
     }
 
+    /**
+     * Schedule a refresh of the status text. Refreshes are at least
+     * STATUS_FREQ ms apart, so a burst of events costs one update.
+     */
+
+    void requestStatus() {
+        if (statusPending.compareAndSet(false, true)) {
+            uiHandler.postDelayed(showStatus, STATUS_FREQ);
+        }
+    }
+
+    //Runs on the UI thread, shows the latest state.
+    final Runnable showStatus = new Runnable() {
+        public void run() {
+            statusPending.set(false);
+
+            if (!started) {
+                return;
+            }
+
+            status.setText("Heading: " + tr(Double.toString(statusHeading), 3) + "\nX-Axis: "
+                    + tr(Double.toString(statusX), 5) + "\nY-Axis: " + tr(Double.toString(statusY), 5)
+                    + "\n\nLat: " + tr(Double.toString(latitude), 7) + "\nLon: " + tr(Double.toString(longitude), 7)
+                    + "\nAccuracy: " + Float.toString(accuracy)
+                    + "\n\nFused Lat: " + tr(Double.toString(fusedLat), 7) + "\nFused Lon: "
+                    + tr(Double.toString(fusedLon), 7) + "\nSpread: " + tr(Double.toString(fusedSpread), 4)
+                    + "\n\nCorrected X: " + tr(Double.toString(statusCorrectedX), 5) + "\nCorrected Y: "
+                    + tr(Double.toString(statusCorrectedY), 5) + "\nLoops closed: " + statusClosures
+                    + "\n\n" + statusGps);
+        }
+    };
+
     @Override
     public void dataHookAcc(long now_ms, double x, double y, double z) {
-        //default body
+        TraceRecorder tr = traceRecorder;
+        if (tr != null) {
+            tr.acc(now_ms, x, y, z);
+        }
     }
 
     @Override
@@ -494,9 +814,28 @@ public class MainActivity extends Activity implements StepTrigger {
         lastHead = x; //save compass azimuth reading to last heading
     }
 
+    @Override
+    public void dataHookMag(long now_ms, double x, double y, double z) {
+        TraceRecorder tr = traceRecorder;
+        if (tr != null) {
+            tr.mag(now_ms, x, y, z);
+        }
+    }
+
+    @Override
+    public void dataHookGyro(long now_ms, double x, double y, double z) {
+        TraceRecorder tr = traceRecorder;
+        if (tr != null) {
+            tr.gyro(now_ms, x, y, z);
+        }
+    }
+
     @Override
     public void timedDataHook(long now_ms, double[] acc, double[] comp) {
-        //default body
+        TraceRecorder tr = traceRecorder;
+        if (tr != null) {
+            tr.timed(now_ms, acc, comp);
+        }
     }
 
     /**
@@ -504,6 +843,7 @@ public class MainActivity extends Activity implements StepTrigger {
      */
 
     // Define a listener that responds to location updates
+    // registered with the worker's looper, so it runs on the worker thread
     LocationListener locationListener = new LocationListener() {
         // Called when a new location is found by the network location provider.
         public void onLocationChanged(Location location) {
@@ -511,22 +851,44 @@ public class MainActivity extends Activity implements StepTrigger {
             latitude = location.getLatitude();
             longitude = location.getLongitude();
 
-            JSONObject loc = new JSONObject();
+            gps.onFix(System.currentTimeMillis(), accuracy);
+            scheduleGps();
 
-            try {
-                loc.put("time", location.getTime());
-                loc.put("type", "absolute");
-                loc.put("heading", lastHead);
-                loc.put("latitude", latitude);
-                loc.put("longitude", longitude);
-                loc.put("accuracy", accuracy);
+            //anchor the local frame at the first good fix, where the user is now
+            //steps and fixes from here on get east/north in it
+            if (!frame.isAnchored() && accuracy <= LocalFrame.GOOD_ACCURACY) {
+                frame.anchor(latitude, longitude);
+                recorder.frame(latitude, longitude, -absLocX, -absLocY);
             }
 
-            catch (JSONException e){
-                //just needed so Java/IDEA won't complain
-            }
+            recorder.fix(location.getTime(), lastHead, latitude, longitude, accuracy); //add fix to data
+
+            //correct the fused position, and keep the estimate with the fix
+            if (fusion != null && frame.isAnchored()) {
+                fusion.fix(frame.east(longitude), frame.north(latitude), accuracy);
+                fusedLat = frame.latitude(fusion.getNorth());
+                fusedLon = frame.longitude(fusion.getEast());
+                fusedSpread = fusion.getSpread();
+
+                try {
+                    JSONObject fused = new JSONObject();
+                    fused.put("type", "fused");
+                    fused.put("time", location.getTime());
+                    fused.put("latitude", fusedLat);
+                    fused.put("longitude", fusedLon);
+                    fused.put("east", fusion.getEast());
+                    fused.put("north", fusion.getNorth());
+                    fused.put("spread", fusedSpread);
+                    fused.put("bias", fusion.getHeadingBias());
+                    fused.put("scale", fusion.getStrideScale());
+                    recorder.event(fused.toString());
+                }
 
-            sessionData.put(loc); //add step to data object
+                catch (JSONException e) {
+                    //only numbers, can't happen
+                }
+            }
+            requestStatus();
         }
 
         public void onStatusChanged(String provider, int status, Bundle extras) {}
@@ -534,6 +896,95 @@ public class MainActivity extends Activity implements StepTrigger {
         public void onProviderDisabled(String provider) {}
     };
 
+    /**
+     * GPS duty cycle, on the worker thread. After every fix or missed fix,
+     * GPS either stays on with the interval as its min time, or is turned
+     * off until the next fix is wanted, see FixScheduler. A fix not there
+     * SEARCH_MS after it was wanted is missed.
+     */
+
+    void scheduleGps() {
+        long now = System.currentTimeMillis();
+        long interval = gps.getInterval(now);
+
+        worker.removeCallbacks(gpsWake);
+        worker.removeCallbacks(gpsMissed);
+
+        if (gps.isSleeping(now)) {
+            gpsOff();
+            worker.postDelayed(gpsWake, interval);
+        }
+
+        else {
+            gpsOn(interval);
+        }
+
+        worker.postDelayed(gpsMissed, interval + FixScheduler.SEARCH_MS);
+
+        statusGps = "GPS: " + gps.getUsed() + " of " + gps.getRequested() + " fixes used, every "
+                + interval / 1000 + " s";
+    }
+
+    //asks for fixes at most every minTime ms, re-registers only if that changed
+    private void gpsOn(long minTime) {
+        if (gpsInterval != minTime) {
+            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, minTime, 0, locationListener,
+                    workerThread.getLooper());
+            gpsInterval = minTime;
+        }
+        gps.setOn(System.currentTimeMillis(), true);
+    }
+
+    private void gpsOff() {
+        if (gpsInterval >= 0) {
+            locationManager.removeUpdates(locationListener);
+            gpsInterval = -1;
+        }
+        gps.setOn(System.currentTimeMillis(), false);
+    }
+
+    //the next fix is wanted, search until it comes
+    final Runnable gpsWake = new Runnable() {
+        public void run() {
+            gpsOn(0);
+        }
+    };
+
+    final Runnable gpsMissed = new Runnable() {
+        public void run() {
+            gps.onMissed(System.currentTimeMillis());
+            scheduleGps();
+            requestStatus();
+        }
+    };
+
+    //turn GPS off for good and record how much it was used
+    private void stopGps() {
+        worker.removeCallbacks(gpsWake);
+        worker.removeCallbacks(gpsMissed);
+        gpsOff();
+
+        if (!recorder.isRecording()) {
+            return;
+        }
+
+        try {
+            JSONObject report = new JSONObject();
+            report.put("type", "gps");
+            report.put("time", System.currentTimeMillis());
+            report.put("requested", gps.getRequested());
+            report.put("delivered", gps.getDelivered());
+            report.put("used", gps.getUsed());
+            report.put("missed", gps.getMissed());
+            report.put("on", gps.getOnMs(System.currentTimeMillis()));
+            recorder.event(report.toString());
+        }
+
+        catch (JSONException e) {
+            //only numbers, can't happen
+        }
+    }
+
     /**
      * Dialog boxes.
      */
@@ -666,20 +1117,17 @@ public class MainActivity extends Activity implements StepTrigger {
 
                 .setPositiveButton("Confirm", new DialogInterface.OnClickListener() {
                     public void onClick(final DialogInterface dialog, final int id) {
-                        String content = input.getText().toString();
-                        JSONObject label = new JSONObject();
-
-                        try {
-                            label.put("time", System.currentTimeMillis());
-                            label.put("type", "label");
-                            label.put("content", content);
-                        }
+                        final String content = input.getText().toString();
+                        final long time = System.currentTimeMillis();
 
-                        catch (JSONException e){
-                            //just needed so Java/IDEA won't complain
-                        }
+                        //add label to data
+                        worker.post(new Runnable() {
+                            public void run() {
+                                recorder.label(time, content);
+                                closeLoop(time, content);
+                            }
+                        });
 
-                        sessionData.put(label); //add step to data object
                         makeToast("Label added!");
                         dataPause = false;
                     }
@@ -705,18 +1153,29 @@ public class MainActivity extends Activity implements StepTrigger {
 
                 .setPositiveButton("Yes", new DialogInterface.OnClickListener() {
                     public void onClick(final DialogInterface dialog, final int id) {
-                        writeJSONFile(SESSIONS, sessionData);
-                        sendAlert(); // prompt send
-
-                        //reset sessionData after write
-                        sessionData = new JSONArray();
+                        //write on the worker, it owns the recording
+                        worker.post(new Runnable() {
+                            public void run() {
+                                writeSession();
+
+                                runOnUiThread(new Runnable() {
+                                    public void run() {
+                                        sendAlert(); // prompt send
+                                    }
+                                });
+                            }
+                        });
                     }
                 })
 
                 .setNegativeButton("No", new DialogInterface.OnClickListener() {
                     public void onClick(final DialogInterface dialog, final int id) {
-                        //reset sessionData to blank
-                        sessionData = new JSONArray();
+                        //drop the recording
+                        worker.post(new Runnable() {
+                            public void run() {
+                                recorder.discard();
+                            }
+                        });
 
                         //hide dialog
                         dialog.cancel();
@@ -727,6 +1186,57 @@ public class MainActivity extends Activity implements StepTrigger {
         alert.show();
     }
 
+    private void recoverAlert(final File file, long events) {
+        final AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage("The last trial was interrupted after " + events + " readings. " +
+                "Do you want to keep what was recorded?")
+                .setCancelable(false)
+
+                .setPositiveButton("Yes", new DialogInterface.OnClickListener() {
+                    public void onClick(final DialogInterface dialog, final int id) {
+                        worker.post(new Runnable() {
+                            public void run() {
+                                SessionJournal recovered = new SessionJournal(file);
+
+                                try {
+                                    //the entry is rebuilt from the content, only the journal knows it
+                                    ByteArrayOutputStream session = new ByteArrayOutputStream();
+                                    recovered.copyBlocks(session);
+                                    byte[] data = session.toByteArray();
+
+                                    sessionStore.add(data, SessionStore.describe(data));
+                                    recovered.delete();
+                                    offerRecovered();
+                                }
+
+                                //it stays, and is offered again on the next start
+                                catch (IOException e) {
+                                    e.printStackTrace();
+                                }
+                            }
+                        });
+
+                        makeToast("Trial recovered.");
+                    }
+                })
+
+                .setNegativeButton("No", new DialogInterface.OnClickListener() {
+                    public void onClick(final DialogInterface dialog, final int id) {
+                        worker.post(new Runnable() {
+                            public void run() {
+                                file.delete();
+                                offerRecovered();
+                            }
+                        });
+
+                        dialog.cancel();
+                    }
+                });
+
+        final AlertDialog alert = builder.create();
+        alert.show();
+    }
+
     private void sendAlert() {
         final AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setMessage("Do you want to send all currently saved data? " +
@@ -735,7 +1245,7 @@ public class MainActivity extends Activity implements StepTrigger {
 
                 .setPositiveButton("Yes", new DialogInterface.OnClickListener() {
                     public void onClick(final DialogInterface dialog, final int id) {
-                        new uploadJSONFile().execute(SESSIONS);
+                        uploads.start(gzip);
                     }
                 })
 
@@ -753,162 +1263,140 @@ public class MainActivity extends Activity implements StepTrigger {
      * Methods that handle file I/O.
      */
 
-    public boolean writeJSONFile(String filename, JSONArray jData) {
-        FileOutputStream outputStream;
-        JSONArray origJSON;
-        String output;
-
-        try {
-            String original = readJSONFile(filename); //do this before?
-            outputStream = openFileOutput(filename, Context.MODE_PRIVATE);
+    //finds a journal left by a crash and asks whether to keep it, on the worker
+    private void recoverSession() {
+        //a journal from the last run, move it out of the way of new sessions
+        //under its own name, so it never replaces one still waiting
+        recorder.getJournal().moveAside(RECOVERED);
+        offerRecovered();
+    }
 
-            if (!original.equals("IOException")){
-                origJSON = new JSONArray(original);
-                origJSON.put(jData);
-            }
+    //asks about the oldest journal waiting, one at a time, on the worker
+    private void offerRecovered() {
+        for (final File file : SessionJournal.aside(getFilesDir(), RECOVERED)) {
+            try {
+                final SessionJournal.Recovery found = new SessionJournal(file).recover();
 
-            else{
-                origJSON = new JSONArray();
-                origJSON.put(jData);
-            }
+                if (found == null) {
+                    continue;
+                }
 
-            output = origJSON.toString();
-            byte[] outputBytes = output.getBytes();
+                if (found.events == 0) {
+                    file.delete();
+                    continue;
+                }
 
-            outputStream.write(outputBytes);
-            outputStream.close();
-            return true;
-        }
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        recoverAlert(file, found.events);
+                    }
+                });
+                return;
+            }
 
-        catch (Exception e) {
-            e.printStackTrace();
-            return false;
+            catch (IOException e) {
+                //leave it for the next start
+                e.printStackTrace();
+            }
         }
     }
 
-    public String readJSONFile(String filename) {
-        String contents;
-
+    //saves the recorded session in its own file, costs O(this session)
+    public boolean writeSession() {
+        long id;
         try {
-            FileInputStream in = openFileInput(filename);
-            InputStreamReader inputStreamReader = new InputStreamReader(in);
-            BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-
-            StringBuilder sb = new StringBuilder();
-            String line;
+            SessionJournal journal = recorder.finish();
+            sessionEntry.events = recorder.getEvents();
+            sessionEntry.labels = recorder.getLabels();
 
-            while ((line = bufferedReader.readLine()) != null) {
-                sb.append(line);
-                sb.append("\n");
-            }
-
-            contents = sb.toString();
+            //saved first, so nothing is dropped for a session that couldn't be saved
+            id = sessionStore.add(journal, sessionEntry).id;
         }
 
         catch (IOException e) {
             e.printStackTrace();
-            return "IOException";
+
+            //keep the journal, it is offered again on the next start
+            recorder.getJournal().moveAside(RECOVERED);
+
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    makeToast("Could not save the trial, is the storage full?");
+                }
+            });
+            return false;
         }
 
-        if (contents.equals("")){
-            return "IOException"; //for consistency's sake with errors
+        finally {
+            recorder.discard();
         }
 
-        return contents;
+        makeRoom(id);
+        return true;
     }
 
-    //this will run on an asynchronous thread for performance
-    public class uploadJSONFile extends AsyncTask<String, Void, String> {
-        //uploads to server, return value gives disposition
-        protected String doInBackground(String... filename){
-            //instantiates httpclient to make request
-            DefaultHttpClient httpclient = new DefaultHttpClient();
-
-            //instantiate StringEntity
-            StringEntity se;
-
-            //url with the post data
-            HttpPost httppost = new HttpPost(SERVER);
-
-            //convert parameters into JSON object
-            String postData = readJSONFile(filename[0]);
+    //the older sessions make room for the one just saved, tell the user what had to go
+    private void makeRoom(long saved) {
+        try {
+            final SessionStore.Report report = sessionStore.enforceBudget(budget * 1024L * 1024L, evict, saved);
 
-            if (postData.equals("IOException")) {
-                return "";
+            if (report.dropped()) {
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        makeToast("Storage full, dropped " + report.evicted.size() + " unsent trials ("
+                                + report.evictedBytes / 1024 + " KB).");
+                    }
+                });
             }
+        }
 
-            //passes the results to a string builder/entity
-            try { se = new StringEntity(postData); }
-            catch (UnsupportedEncodingException e) { return ""; }
-
-            //sets the post request as the resulting string
-            httppost.setEntity(se);
-
-            //sets a request header so the page receiving the request
-            //will know what to do with it
-            httppost.setHeader("Accept", "application/json");
-            httppost.setHeader("Content-type", "application/json");
-
-            //Handles what is returned from the page
-            //Catch catches situations with no internet
-
-            try {
-                HttpResponse response = httpclient.execute(httppost);
-                int responseCode = response.getStatusLine().getStatusCode();
-
-                switch(responseCode) {
-                    case 200: //everything went fine
-                        HttpEntity entity = response.getEntity();
-                        return EntityUtils.toString(entity);
+        //the trial is saved, only the budget is not kept this time
+        catch (IOException e) {
+            e.printStackTrace();
 
-                    default:
-                        return "";
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    makeToast("Trial saved, but older trials could not be cleaned up.");
                 }
-            }
-
-            catch (Exception e) {
-                return "";
-            }
+            });
         }
+    }
 
-        protected void onPostExecute(String out) {
-            if (!out.equals("")) {
-                blank(SESSIONS);
-                makeToast("Data successfully uploaded.");
-                makeToast("Thanks for contributing.");
+    //reports the end of an upload run, called on the upload thread
+    final UploadQueue.Listener uploadListener = new UploadQueue.Listener() {
+        public void onUploaded(SessionStore.Entry session) {
+        }
 
-                if (devMode && !appIsPausing){
-                    new AlertDialog.Builder(thisCopy)
-                        .setMessage(out)
-                        .setPositiveButton("Cool", new DialogInterface.OnClickListener() {
-                            public void onClick(DialogInterface dialog, int which) {}
-                        }).create().show();
-                }
+        public void onIdle(final int uploaded, final int pending, final String out) {
+            if (uploaded == 0 && pending == 0) {
+                return; //nothing was waiting
             }
 
-            else {
-                makeToast("Data upload unsuccessful.");
-                makeToast("I'll try again later.");
-            }
-        }
-    }
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    if (pending == 0) {
 
-    //blanks a file
-    public boolean blank(String filename){
-        FileOutputStream outputStream;
+                        makeToast("Data successfully uploaded.");
+                        makeToast("Thanks for contributing.");
 
-        try {
-            outputStream = openFileOutput(filename, Context.MODE_PRIVATE);
-            outputStream.write("".getBytes());
-            outputStream.close();
-            return true;
-        }
+                        if (devMode && !appIsPausing){
+                            new AlertDialog.Builder(thisCopy)
+                                .setMessage(out + "\n\n" + uploads.getStats())
+                                .setPositiveButton("Cool", new DialogInterface.OnClickListener() {
+                                    public void onClick(DialogInterface dialog, int which) {}
+                                }).create().show();
+                        }
+                    }
 
-        catch (Exception e) {
-            e.printStackTrace();
-            return false;
+                    else {
+                        //what was sent is kept by the server, the rest goes on the next start
+                        makeToast("Data upload unsuccessful.");
+                        makeToast("I'll try again later.");
+                    }
+                }
+            });
         }
-    }
+    };
 
     /**
      * Various tools.
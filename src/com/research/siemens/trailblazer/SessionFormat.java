@@ -0,0 +1,999 @@
+package com.research.siemens.trailblazer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import de.uvwxy.footpath.core.LocalFrame;
+import de.uvwxy.footpath.core.LoopCloser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Compact binary encoding of one session, see the JSON event format in
+ * MainActivity. Events are split into columns:
+ *
+ * TYPE  one byte per event: step, fix, label or other
+ * TIME  zig-zag varint delta to the previous event's time
+ * STEP  heading, x, y, absX, absY of steps
+ * FIX   heading, latitude, longitude, accuracy of GPS fixes
+ * TEXT  content of labels, varint length + UTF-8
+ * EXTRA any other event (e.g. start) as JSON text, varint length + UTF-8
+ * FRAME the local frame, if any: index of the first event in it, anchor
+ *       latitude/longitude, east/north offset of the step frame
+ *
+ * Numbers are quantized and stored as zig-zag varints, coordinates as
+ * deltas to the previous step or fix:
+ * heading 0.01 deg, x/y/absX/absY 0.1 mm, latitude/longitude 1e-7 deg,
+ * accuracy 0.01 m. That is finer than the sensors deliver, the recorder
+ * rounds to it. fromJSON() is lossless: an event goes to its typed column
+ * only if every number is a multiple of its resolution, one that isn't
+ * (or has missing or extra keys) goes to EXTRA as is, so converting back
+ * to JSON keeps every field of every event.
+ *
+ * Once the recorder has a LocalFrame, every block repeats it in FRAME.
+ * Each step's east/north is then its absX/absY plus the offset, and
+ * each fix's east/north is its projection. Both cost O(1) per event
+ * while decoding, and a block can be decoded without the earlier ones.
+ * The east/north values are written into the JSON form, so the server
+ * doesn't have to project the session. Version 1 blocks have no FRAME.
+ *
+ * A block is: [magic][version][event count][7 x (length, column)].
+ * A session is one or more blocks back to back, so a recorder can write
+ * it in bounded pieces. Deltas start over in every block.
+ */
+
+public class SessionFormat {
+
+    public static final int MAGIC = 0x54425342; // "TBSB"
+    public static final int VERSION = 2;
+
+    public static final byte STEP = 0;
+    public static final byte FIX = 1;
+    public static final byte LABEL = 2;
+    public static final byte OTHER = 3;
+
+    public static final double HEADING_SCALE = 100.0;
+    public static final double XY_SCALE = 10000.0;
+    public static final double LATLON_SCALE = 1e7;
+    public static final double ACCURACY_SCALE = 100.0;
+
+    //largest value kept in a typed column, larger ones go to EXTRA
+    private static final double MAX_QUANTIZED = 1e15;
+
+    /**
+     * Receives the events of a decoded session, in recorded order.
+     */
+
+    public interface Visitor {
+        public void onStep(long time, double heading, double x, double y, double absX, double absY);
+        public void onFix(long time, double heading, double latitude, double longitude, double accuracy);
+        public void onLabel(long time, String content);
+        public void onEvent(String json);
+
+        //the events from here on are in this frame, repeated for every block
+        public void onFrame(double anchorLatitude, double anchorLongitude, double offsetEast, double offsetNorth);
+    }
+
+    /**
+     * Growable byte column with varint helpers.
+     */
+
+    static class Column {
+        byte[] buf;
+        int size = 0;
+        int pos = 0; //read position
+
+        Column(int capacity) {
+            buf = new byte[Math.max(capacity, 16)];
+        }
+
+        Column(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.pos = offset;
+            this.size = offset + length;
+        }
+
+        void write(int b) {
+            if (size == buf.length) {
+                byte[] grown = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, grown, 0, size);
+                buf = grown;
+            }
+            buf[size++] = (byte) b;
+        }
+
+        void write(byte[] b) {
+            for (int i = 0; i < b.length; i++) {
+                write(b[i]);
+            }
+        }
+
+        void writeVarint(long v) {
+            while ((v & ~0x7FL) != 0) {
+                write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            write((int) v);
+        }
+
+        void writeZigZag(long v) {
+            writeVarint((v << 1) ^ (v >> 63));
+        }
+
+        void writeString(String s) {
+            byte[] b = utf8(s);
+            writeVarint(b.length);
+            write(b);
+        }
+
+        int read() throws IOException {
+            if (pos >= size) {
+                throw new IOException("session truncated");
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("bad varint");
+        }
+
+        long readZigZag() throws IOException {
+            long v = readVarint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        String readString() throws IOException {
+            long len = readVarint();
+            if (len < 0 || len > size - pos) {
+                throw new IOException("session truncated");
+            }
+            String s = new String(buf, pos, (int) len, "UTF-8");
+            pos += (int) len;
+            return s;
+        }
+    }
+
+    /**
+     * Builds the binary form of a session event by event.
+     */
+
+    public static class Writer {
+        private final Column type = new Column(256);
+        private final Column time = new Column(512);
+        private final Column step = new Column(2048);
+        private final Column fix = new Column(256);
+        private final Column text = new Column(64);
+        private final Column extra = new Column(256);
+        private final Column frame = new Column(32);
+        private int count = 0;
+
+        //the local frame, kept across blocks
+        private boolean hasFrame = false;
+        private int frameFrom;
+        private double anchorLat, anchorLon, offsetEast, offsetNorth;
+
+        //previous values, deltas are taken against them
+        private long lastTime = 0;
+        private long lastX, lastY, lastAbsX, lastAbsY;
+        private long lastLat, lastLon;
+
+        public int count() {
+            return count;
+        }
+
+        //start a new block, keeps the buffers
+        public void reset() {
+            type.size = 0;
+            time.size = 0;
+            step.size = 0;
+            fix.size = 0;
+            text.size = 0;
+            extra.size = 0;
+            count = 0;
+            frameFrom = 0;
+            lastTime = 0;
+            lastX = lastY = lastAbsX = lastAbsY = 0;
+            lastLat = lastLon = 0;
+        }
+
+        /**
+         * The events from here on are in a local frame anchored at a fix.
+         *
+         * @param offsetEast added to a step's absX to get its east
+         * @param offsetNorth added to a step's absY to get its north
+         */
+
+        public void frame(double anchorLatitude, double anchorLongitude, double offsetEast, double offsetNorth) {
+            if (hasFrame && anchorLatitude == anchorLat && anchorLongitude == anchorLon
+                    && offsetEast == this.offsetEast && offsetNorth == this.offsetNorth) {
+                return; //the same frame again, e.g. while re-encoding
+            }
+            hasFrame = true;
+            frameFrom = count;
+            anchorLat = anchorLatitude;
+            anchorLon = anchorLongitude;
+            this.offsetEast = offsetEast;
+            this.offsetNorth = offsetNorth;
+        }
+
+        //drop the frame, e.g. for a new session
+        public void clearFrame() {
+            hasFrame = false;
+        }
+
+        private void time(long t) {
+            time.writeZigZag(t - lastTime);
+            lastTime = t;
+        }
+
+        public void step(long t, double heading, double x, double y, double absX, double absY) {
+            type.write(STEP);
+            time(t);
+            long qx = q(x, XY_SCALE);
+            long qy = q(y, XY_SCALE);
+            long qax = q(absX, XY_SCALE);
+            long qay = q(absY, XY_SCALE);
+            step.writeZigZag(q(heading, HEADING_SCALE));
+            step.writeZigZag(qx - lastX);
+            step.writeZigZag(qy - lastY);
+            step.writeZigZag(qax - lastAbsX);
+            step.writeZigZag(qay - lastAbsY);
+            lastX = qx;
+            lastY = qy;
+            lastAbsX = qax;
+            lastAbsY = qay;
+            count++;
+        }
+
+        public void fix(long t, double heading, double latitude, double longitude, double accuracy) {
+            type.write(FIX);
+            time(t);
+            long qlat = q(latitude, LATLON_SCALE);
+            long qlon = q(longitude, LATLON_SCALE);
+            fix.writeZigZag(q(heading, HEADING_SCALE));
+            fix.writeZigZag(qlat - lastLat);
+            fix.writeZigZag(qlon - lastLon);
+            fix.writeZigZag(q(accuracy, ACCURACY_SCALE));
+            lastLat = qlat;
+            lastLon = qlon;
+            count++;
+        }
+
+        public void label(long t, String content) {
+            type.write(LABEL);
+            time(t);
+            text.writeString(content);
+            count++;
+        }
+
+        //any other event, kept as JSON text
+        public void event(String json) {
+            type.write(OTHER);
+            extra.writeString(json);
+            count++;
+        }
+
+        public byte[] toByteArray() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    32 + type.size + time.size + step.size + fix.size + text.size + extra.size);
+            try {
+                writeTo(out);
+            }
+
+            catch (IOException e) {
+                throw new RuntimeException(e); //can't happen in memory
+            }
+            return out.toByteArray();
+        }
+
+        //write the block, without copying the columns
+        public void writeTo(OutputStream out) throws IOException {
+            Column header = new Column(64);
+            writeInt(header, MAGIC);
+            header.write(VERSION);
+            header.writeVarint(count);
+            out.write(header.buf, 0, header.size);
+
+            frame.size = 0;
+            if (hasFrame) {
+                frame.writeVarint(frameFrom);
+                frame.writeZigZag(q(anchorLat, LATLON_SCALE));
+                frame.writeZigZag(q(anchorLon, LATLON_SCALE));
+                frame.writeZigZag(q(offsetEast, XY_SCALE));
+                frame.writeZigZag(q(offsetNorth, XY_SCALE));
+            }
+
+            Column[] columns = {type, time, step, fix, text, extra, frame};
+            for (Column c : columns) {
+                header.size = 0;
+                header.writeVarint(c.size);
+                out.write(header.buf, 0, header.size);
+                out.write(c.buf, 0, c.size);
+            }
+        }
+    }
+
+    /**
+     * @return true if the bytes start like a binary session
+     */
+
+    public static boolean isSession(byte[] data) {
+        return data.length >= 5 && readInt(data, 0) == MAGIC;
+    }
+
+    /**
+     * Decode a binary session and hand its events to the visitor in order.
+     */
+
+    public static void read(byte[] data, Visitor visitor) throws IOException {
+        if (!isSession(data)) {
+            throw new IOException("not a session");
+        }
+
+        int pos = 0;
+        while (pos < data.length) {
+            pos = readBlock(data, pos, data.length, visitor);
+        }
+    }
+
+    /**
+     * Decode a binary session from a stream, one block at a time, so only
+     * the largest block is held in memory.
+     */
+
+    public static void read(InputStream in, Visitor visitor) throws IOException {
+        Column block = new Column(4096);
+        boolean first = true;
+
+        while (true) {
+            block.size = 0;
+
+            int b = in.read();
+            if (b < 0) {
+                if (first) {
+                    throw new IOException("not a session");
+                }
+                return;
+            }
+
+            //magic, version
+            block.write(b);
+            for (int i = 0; i < 4; i++) {
+                block.write(readByte(in));
+            }
+
+            //event count, then length and bytes of each column
+            copyVarint(in, block);
+            int columns = columns(block.buf[4]);
+            for (int c = 0; c < columns; c++) {
+                long len = copyVarint(in, block);
+                if (len < 0 || len > Integer.MAX_VALUE - block.size) {
+                    throw new IOException("bad column length");
+                }
+                for (long i = 0; i < len; i++) {
+                    block.write(readByte(in));
+                }
+            }
+
+            readBlock(block.buf, 0, block.size, visitor);
+            first = false;
+        }
+    }
+
+    /**
+     * Find where each block of a session ends, without decoding it.
+     *
+     * @return the byte offset after each block
+     */
+
+    public static long[] blockEnds(InputStream in) throws IOException {
+        long[] ends = new long[16];
+        int n = 0;
+        long pos = 0;
+        Column skip = new Column(16);
+
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                break;
+            }
+
+            skip.size = 0;
+            skip.write(b);
+            for (int i = 0; i < 4; i++) {
+                skip.write(readByte(in));
+            }
+            if (readInt(skip.buf, 0) != MAGIC) {
+                throw new IOException("bad block at " + pos);
+            }
+
+            //the header and column lengths stay in skip, the columns are skipped
+            copyVarint(in, skip);
+            int columns = columns(skip.buf[4]);
+            long skipped = 0;
+            for (int c = 0; c < columns; c++) {
+                long len = copyVarint(in, skip);
+                if (len < 0) {
+                    throw new IOException("bad column length");
+                }
+                skipFully(in, len);
+                skipped += len;
+            }
+
+            pos += skip.size + skipped;
+            if (n == ends.length) {
+                long[] grown = new long[n * 2];
+                System.arraycopy(ends, 0, grown, 0, n);
+                ends = grown;
+            }
+            ends[n++] = pos;
+        }
+
+        long[] result = new long[n];
+        System.arraycopy(ends, 0, result, 0, n);
+        return result;
+    }
+
+    //columns of a block of this version
+    private static int columns(byte version) throws IOException {
+        switch (version) {
+            case 1:
+                return 6;
+            case VERSION:
+                return 7;
+            default:
+                throw new IOException("unknown session version " + version);
+        }
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                readByte(in);
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new IOException("session truncated");
+        }
+        return b;
+    }
+
+    //copy a varint from the stream into the column and return its value
+    private static long copyVarint(InputStream in, Column to) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            to.write(b);
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("bad varint");
+    }
+
+    //decode the block at offset, returns the offset after it
+    private static int readBlock(byte[] data, int offset, int end, Visitor visitor) throws IOException {
+        if (end - offset < 5 || readInt(data, offset) != MAGIC) {
+            throw new IOException("bad block at " + offset);
+        }
+        Column header = new Column(data, offset + 5, end - offset - 5);
+        long count = header.readVarint();
+        Column[] columns = new Column[columns(data[offset + 4])];
+        for (int i = 0; i < columns.length; i++) {
+            long len = header.readVarint();
+            if (len < 0 || len > header.size - header.pos) {
+                throw new IOException("session truncated");
+            }
+            columns[i] = new Column(data, header.pos, (int) len);
+            header.pos += (int) len;
+        }
+        Column type = columns[0], time = columns[1], step = columns[2];
+        Column fix = columns[3], text = columns[4], extra = columns[5];
+
+        //the frame, if the block has one
+        long frameFrom = -1;
+        double anchorLat = 0, anchorLon = 0, offsetEast = 0, offsetNorth = 0;
+        if (columns.length > 6 && columns[6].pos < columns[6].size) {
+            Column frame = columns[6];
+            frameFrom = frame.readVarint();
+            anchorLat = frame.readZigZag() / LATLON_SCALE;
+            anchorLon = frame.readZigZag() / LATLON_SCALE;
+            offsetEast = frame.readZigZag() / XY_SCALE;
+            offsetNorth = frame.readZigZag() / XY_SCALE;
+        }
+
+        long t = 0;
+        long x = 0, y = 0, absX = 0, absY = 0;
+        long lat = 0, lon = 0;
+
+        for (long n = 0; n < count; n++) {
+            if (n == frameFrom) {
+                visitor.onFrame(anchorLat, anchorLon, offsetEast, offsetNorth);
+            }
+
+            int kind = type.read();
+            switch (kind) {
+                case STEP:
+                    t += time.readZigZag();
+                    double heading = step.readZigZag() / HEADING_SCALE;
+                    x += step.readZigZag();
+                    y += step.readZigZag();
+                    absX += step.readZigZag();
+                    absY += step.readZigZag();
+                    visitor.onStep(t, heading, x / XY_SCALE, y / XY_SCALE, absX / XY_SCALE, absY / XY_SCALE);
+                    break;
+
+                case FIX:
+                    t += time.readZigZag();
+                    double fixHeading = fix.readZigZag() / HEADING_SCALE;
+                    lat += fix.readZigZag();
+                    lon += fix.readZigZag();
+                    double accuracy = fix.readZigZag() / ACCURACY_SCALE;
+                    visitor.onFix(t, fixHeading, lat / LATLON_SCALE, lon / LATLON_SCALE, accuracy);
+                    break;
+
+                case LABEL:
+                    t += time.readZigZag();
+                    visitor.onLabel(t, text.readString());
+                    break;
+
+                case OTHER:
+                    visitor.onEvent(extra.readString());
+                    break;
+
+                default:
+                    throw new IOException("unknown event type " + kind);
+            }
+        }
+
+        //set after the last event of the block
+        if (frameFrom >= count) {
+            visitor.onFrame(anchorLat, anchorLon, offsetEast, offsetNorth);
+        }
+
+        return header.pos;
+    }
+
+    /**
+     * Encode a session in the JSON event format.
+     */
+
+    public static byte[] fromJSON(JSONArray session) {
+        Writer w = new Writer();
+        for (int i = 0; i < session.length(); i++) {
+            JSONObject e = session.optJSONObject(i);
+            if (e == null) {
+                w.event(String.valueOf(session.opt(i)));
+            } else if (!encodeTyped(w, e)) {
+                w.event(e.toString());
+            }
+        }
+        return w.toByteArray();
+    }
+
+    //put known events into the typed columns, false if it doesn't fit
+    private static boolean encodeTyped(Writer w, JSONObject e) {
+        String type = e.optString("type", "");
+        Object time = e.opt("time");
+        if (!(time instanceof Long || time instanceof Integer)) {
+            return false;
+        }
+        long t = ((Number) time).longValue();
+
+        if (type.equals("relative") && e.length() == 7) {
+            double[] v = numbers(e, "heading", HEADING_SCALE, "x", XY_SCALE, "y", XY_SCALE,
+                    "absX", XY_SCALE, "absY", XY_SCALE);
+            if (v != null) {
+                w.step(t, v[0], v[1], v[2], v[3], v[4]);
+                return true;
+            }
+        } else if (type.equals("absolute") && e.length() == 6) {
+            double[] v = numbers(e, "heading", HEADING_SCALE, "latitude", LATLON_SCALE,
+                    "longitude", LATLON_SCALE, "accuracy", ACCURACY_SCALE);
+            if (v != null) {
+                w.fix(t, v[0], v[1], v[2], v[3]);
+                return true;
+            }
+        } else if (type.equals("label") && e.length() == 3 && e.opt("content") instanceof String) {
+            w.label(t, (String) e.opt("content"));
+            return true;
+        }
+
+        return false;
+    }
+
+    //values of the keys, null if one is missing or would not survive quantization
+    private static double[] numbers(JSONObject e, Object... keysAndScales) {
+        double[] v = new double[keysAndScales.length / 2];
+        for (int i = 0; i < v.length; i++) {
+            Object o = e.opt((String) keysAndScales[2 * i]);
+            if (!(o instanceof Number)) {
+                return null;
+            }
+            double d = ((Number) o).doubleValue();
+            if (!exact(d, (Double) keysAndScales[2 * i + 1])) {
+                return null;
+            }
+            v[i] = d;
+        }
+        return v;
+    }
+
+    //true if the value decodes to itself after quantization, -0.0 and fractions of the resolution don't
+    static boolean exact(double v, double scale) {
+        if (Double.isNaN(v) || Double.isInfinite(v) || Math.abs(v * scale) > MAX_QUANTIZED) {
+            return false;
+        }
+        return Double.compare(q(v, scale) / scale, v) == 0;
+    }
+
+    /**
+     * Replay the steps and labels of a binary session through a
+     * LoopCloser, the same way the worker does while recording.
+     *
+     * @return the closer with the corrected end of the track, see LoopCloser
+     */
+
+    public static LoopCloser closeLoops(InputStream session) throws IOException {
+        final LoopCloser closer = new LoopCloser();
+        read(session, new Visitor() {
+            boolean started = false;
+
+            public void onStep(long time, double heading, double x, double y, double absX, double absY) {
+                //the first step is the origin
+                if (!started) {
+                    closer.reset(time);
+                    started = true;
+                    return;
+                }
+                closer.step(time, absX, absY);
+            }
+
+            public void onFix(long time, double heading, double latitude, double longitude, double accuracy) {
+            }
+
+            public void onLabel(long time, String content) {
+                closer.label(content);
+            }
+
+            public void onEvent(String json) {
+            }
+
+            public void onFrame(double anchorLatitude, double anchorLongitude, double offsetEast, double offsetNorth) {
+            }
+        });
+        return closer;
+    }
+
+    /**
+     * Write a binary session as JSON text in the JSON event format, event
+     * by event, without building JSON objects. Reads one block at a time.
+     */
+
+    public static void writeJSON(InputStream session, final java.io.Writer out) throws IOException {
+        final IOException[] failed = new IOException[1];
+        out.write('[');
+
+        read(session, new Visitor() {
+            boolean first = true;
+            Frame frame = null;
+
+            void begin(long time, String type) throws IOException {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                out.write("{\"time\":");
+                out.write(Long.toString(time));
+                out.write(",\"type\":\"");
+                out.write(type);
+                out.write('"');
+            }
+
+            void field(String name, double value) throws IOException {
+                out.write(",\"");
+                out.write(name);
+                out.write("\":");
+                out.write(number(value));
+            }
+
+            public void onStep(long time, double heading, double x, double y, double absX, double absY) {
+                try {
+                    begin(time, "relative");
+                    field("heading", heading);
+                    field("x", x);
+                    field("y", y);
+                    field("absX", absX);
+                    field("absY", absY);
+                    if (frame != null) {
+                        field("east", frame.stepEast(absX));
+                        field("north", frame.stepNorth(absY));
+                    }
+                    out.write('}');
+                }
+
+                catch (IOException e) {
+                    failed[0] = e;
+                }
+            }
+
+            public void onFix(long time, double heading, double latitude, double longitude, double accuracy) {
+                try {
+                    begin(time, "absolute");
+                    field("heading", heading);
+                    field("latitude", latitude);
+                    field("longitude", longitude);
+                    field("accuracy", accuracy);
+                    if (frame != null) {
+                        field("east", frame.fixEast(longitude));
+                        field("north", frame.fixNorth(latitude));
+                    }
+                    out.write('}');
+                }
+
+                catch (IOException e) {
+                    failed[0] = e;
+                }
+            }
+
+            public void onLabel(long time, String content) {
+                try {
+                    begin(time, "label");
+                    out.write(",\"content\":");
+                    out.write(JSONObject.quote(content));
+                    out.write('}');
+                }
+
+                catch (IOException e) {
+                    failed[0] = e;
+                }
+            }
+
+            public void onEvent(String json) {
+                try {
+                    if (!first) {
+                        out.write(',');
+                    }
+                    first = false;
+                    out.write(json);
+                }
+
+                catch (IOException e) {
+                    failed[0] = e;
+                }
+            }
+
+            public void onFrame(double anchorLatitude, double anchorLongitude, double offsetEast,
+                                double offsetNorth) {
+                if (frame != null && frame.is(anchorLatitude, anchorLongitude, offsetEast, offsetNorth)) {
+                    return; //repeated by the next block
+                }
+
+                frame = new Frame(anchorLatitude, anchorLongitude, offsetEast, offsetNorth);
+                try {
+                    if (!first) {
+                        out.write(',');
+                    }
+                    first = false;
+                    out.write("{\"type\":\"frame\"");
+                    field("latitude", anchorLatitude);
+                    field("longitude", anchorLongitude);
+                    out.write('}');
+                }
+
+                catch (IOException e) {
+                    failed[0] = e;
+                }
+            }
+        });
+
+        if (failed[0] != null) {
+            throw failed[0];
+        }
+        out.write(']');
+    }
+
+    /**
+     * A frame seen while decoding, projects steps and fixes into it.
+     */
+
+    private static class Frame {
+        final double anchorLat, anchorLon, offsetEast, offsetNorth;
+        final LocalFrame local;
+
+        Frame(double anchorLat, double anchorLon, double offsetEast, double offsetNorth) {
+            this.anchorLat = anchorLat;
+            this.anchorLon = anchorLon;
+            this.offsetEast = offsetEast;
+            this.offsetNorth = offsetNorth;
+            this.local = new LocalFrame(anchorLat, anchorLon);
+        }
+
+        boolean is(double lat, double lon, double east, double north) {
+            return lat == anchorLat && lon == anchorLon && east == offsetEast && north == offsetNorth;
+        }
+
+        double stepEast(double absX) {
+            return round(absX + offsetEast);
+        }
+
+        double stepNorth(double absY) {
+            return round(absY + offsetNorth);
+        }
+
+        double fixEast(double longitude) {
+            return round(local.east(longitude));
+        }
+
+        double fixNorth(double latitude) {
+            return round(local.north(latitude));
+        }
+
+        //the event the frame is shown as in the JSON form, see writeJSON() too
+        JSONObject toJSON() {
+            JSONObject e = new JSONObject();
+            try {
+                e.put("type", "frame");
+                e.put("latitude", anchorLat);
+                e.put("longitude", anchorLon);
+            }
+
+            catch (JSONException ex) {
+                throw new RuntimeException(ex); //only numbers
+            }
+            return e;
+        }
+
+        //to the resolution of x/y, 0.1 mm
+        private static double round(double v) {
+            return Math.rint(v * XY_SCALE) / XY_SCALE;
+        }
+    }
+
+    //numbers like JSONObject writes them, whole numbers without a fraction
+    private static String number(double v) {
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+            return Long.toString((long) v);
+        }
+        return Double.toString(v);
+    }
+
+    /**
+     * Decode a binary session into the JSON event format.
+     */
+
+    public static JSONArray toJSON(byte[] data) throws IOException {
+        final JSONArray session = new JSONArray();
+        final JSONException[] failed = new JSONException[1];
+
+        read(data, new Visitor() {
+            Frame frame = null;
+
+            public void onStep(long time, double heading, double x, double y, double absX, double absY) {
+                try {
+                    JSONObject step = new JSONObject();
+                    step.put("time", time);
+                    step.put("type", "relative");
+                    step.put("heading", heading);
+                    step.put("x", x);
+                    step.put("y", y);
+                    step.put("absX", absX);
+                    step.put("absY", absY);
+                    if (frame != null) {
+                        step.put("east", frame.stepEast(absX));
+                        step.put("north", frame.stepNorth(absY));
+                    }
+                    session.put(step);
+                }
+
+                catch (JSONException e) {
+                    failed[0] = e;
+                }
+            }
+
+            public void onFix(long time, double heading, double latitude, double longitude, double accuracy) {
+                try {
+                    JSONObject loc = new JSONObject();
+                    loc.put("time", time);
+                    loc.put("type", "absolute");
+                    loc.put("heading", heading);
+                    loc.put("latitude", latitude);
+                    loc.put("longitude", longitude);
+                    loc.put("accuracy", accuracy);
+                    if (frame != null) {
+                        loc.put("east", frame.fixEast(longitude));
+                        loc.put("north", frame.fixNorth(latitude));
+                    }
+                    session.put(loc);
+                }
+
+                catch (JSONException e) {
+                    failed[0] = e;
+                }
+            }
+
+            public void onLabel(long time, String content) {
+                try {
+                    JSONObject label = new JSONObject();
+                    label.put("time", time);
+                    label.put("type", "label");
+                    label.put("content", content);
+                    session.put(label);
+                }
+
+                catch (JSONException e) {
+                    failed[0] = e;
+                }
+            }
+
+            public void onEvent(String json) {
+                try {
+                    session.put(new JSONTokener(json).nextValue());
+                }
+
+                catch (JSONException e) {
+                    failed[0] = e;
+                }
+            }
+
+            public void onFrame(double anchorLatitude, double anchorLongitude, double offsetEast,
+                                double offsetNorth) {
+                if (frame == null || !frame.is(anchorLatitude, anchorLongitude, offsetEast, offsetNorth)) {
+                    frame = new Frame(anchorLatitude, anchorLongitude, offsetEast, offsetNorth);
+                    session.put(frame.toJSON());
+                }
+            }
+        });
+
+        if (failed[0] != null) {
+            throw new IOException("bad event: " + failed[0].getMessage());
+        }
+        return session;
+    }
+
+    private static long q(double v, double scale) {
+        return Math.round(v * scale);
+    }
+
+    private static void writeInt(Column c, int v) {
+        c.write(v >>> 24);
+        c.write(v >>> 16);
+        c.write(v >>> 8);
+        c.write(v);
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        }
+
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.research.siemens.trailblazer;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write ahead journal of the running session. Every commit appends one
+ * SessionFormat block as a frame [magic][length][CRC32][block] and syncs
+ * the file, so after a crash the session can be recovered up to the last
+ * commit. A frame torn by the crash fails its length or CRC check and
+ * ends the recovered session.
+ *
+ * The blocks of a journal, back to back, are the recorded session.
+ */
+
+public class SessionJournal {
+
+    public static final int MAGIC = 0x54424a31; // "TBJ1"
+    public static final int HEADER = 12; // magic, length, crc
+
+    private final File file;
+    private final Buffer frame = new Buffer();
+    private final CRC32 crc = new CRC32();
+    private FileOutputStream out;
+
+    //ByteArrayOutputStream that lets us at its buffer, so frames aren't copied
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(4096);
+        }
+
+        byte[] buf() {
+            return buf;
+        }
+    }
+
+    /**
+     * What recover() found in a journal.
+     */
+
+    public static class Recovery {
+        public final long length; // end of the last good frame
+        public final int blocks;
+        public final long events;
+
+        Recovery(long length, int blocks, long events) {
+            this.length = length;
+            this.blocks = blocks;
+            this.events = events;
+        }
+    }
+
+    public SessionJournal(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Start an empty journal, drops the previous one.
+     */
+
+    public void open() throws IOException {
+        close();
+        out = new FileOutputStream(file, false);
+    }
+
+    public boolean isOpen() {
+        return out != null;
+    }
+
+    /**
+     * Append a block. It is durable after the next sync().
+     */
+
+    public void append(SessionFormat.Writer block) throws IOException {
+        frame.reset();
+        DataOutputStream d = new DataOutputStream(frame);
+        d.writeInt(MAGIC);
+        d.writeInt(0);
+        d.writeInt(0);
+        block.writeTo(frame);
+
+        byte[] b = frame.buf();
+        int len = frame.size() - HEADER;
+        crc.reset();
+        crc.update(b, HEADER, len);
+        putInt(b, 4, len);
+        putInt(b, 8, (int) crc.getValue());
+
+        out.write(b, 0, frame.size());
+    }
+
+    /**
+     * Force the appended blocks to disk.
+     */
+
+    public void sync() throws IOException {
+        out.flush();
+        out.getFD().sync();
+    }
+
+    public void close() {
+        if (out != null) {
+            try {
+                out.close();
+            }
+
+            catch (IOException e) {
+                //nothing we can do
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Close and delete the journal.
+     */
+
+    public void delete() {
+        close();
+        file.delete();
+    }
+
+    /**
+     * Move the journal's file out of the way of new sessions, e.g. to
+     * offer it for recovery later. It gets a name no other file in its
+     * directory has, prefix.1, prefix.2, ..., so nothing is overwritten.
+     *
+     * @return the moved file, null if there was none or it can't be moved
+     */
+
+    public File moveAside(String prefix) {
+        close();
+        if (!file.exists()) {
+            return null;
+        }
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        for (int n = 1; ; n++) {
+            File aside = new File(dir, prefix + "." + n);
+            if (!aside.exists()) {
+                return file.renameTo(aside) ? aside : null;
+            }
+        }
+    }
+
+    /**
+     * @return the files moved aside with a prefix, oldest first, and a
+     * file named just prefix as older versions left it
+     */
+
+    public static List<File> aside(File dir, final String prefix) {
+        List<File> found = new ArrayList<File>();
+        String[] names = dir.list();
+        if (names == null) {
+            return found;
+        }
+
+        for (String name : names) {
+            if (asideNumber(name, prefix) >= 0) {
+                found.add(new File(dir, name));
+            }
+        }
+
+        Collections.sort(found, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long na = asideNumber(a.getName(), prefix), nb = asideNumber(b.getName(), prefix);
+                return na < nb ? -1 : (na == nb ? 0 : 1);
+            }
+        });
+        return found;
+    }
+
+    //n of prefix.n, 0 for the plain prefix, -1 for any other name
+    private static long asideNumber(String name, String prefix) {
+        if (name.equals(prefix)) {
+            return 0;
+        }
+        if (!name.startsWith(prefix + ".")) {
+            return -1;
+        }
+
+        try {
+            long n = Long.parseLong(name.substring(prefix.length() + 1));
+            return n > 0 ? n : -1;
+        }
+
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Check the journal left by an earlier run and cut off a torn tail.
+     *
+     * @return what was found, null if there is no journal
+     */
+
+    public Recovery recover() throws IOException {
+        close();
+        if (!file.exists()) {
+            return null;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            long pos = 0;
+            int blocks = 0;
+            long events = 0;
+            byte[] payload = new byte[0];
+
+            while (pos + HEADER <= length) {
+                raf.seek(pos);
+                if (raf.readInt() != MAGIC) {
+                    break;
+                }
+
+                int len = raf.readInt();
+                int sum = raf.readInt();
+                if (len < 6 || pos + HEADER + len > length) {
+                    break;
+                }
+
+                if (payload.length < len) {
+                    payload = new byte[len];
+                }
+                raf.readFully(payload, 0, len);
+                crc.reset();
+                crc.update(payload, 0, len);
+                if ((int) crc.getValue() != sum) {
+                    break;
+                }
+
+                events += blockEvents(payload);
+                blocks++;
+                pos += HEADER + len;
+            }
+
+            if (pos != length) {
+                raf.setLength(pos);
+            }
+            return new Recovery(pos, blocks, events);
+        }
+
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Copy the blocks of a closed journal, without their frames, e.g.
+     * into the session log. Only call after recover() or close().
+     *
+     * @return the number of bytes written
+     */
+
+    public long copyBlocks(OutputStream to) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192));
+        try {
+            byte[] buf = new byte[8192];
+            long total = 0;
+
+            while (true) {
+                int magic;
+                try {
+                    magic = in.readInt();
+                }
+
+                catch (EOFException e) {
+                    return total;
+                }
+
+                if (magic != MAGIC) {
+                    throw new IOException("bad frame in " + file.getName());
+                }
+
+                int len = in.readInt();
+                in.readInt(); //crc, checked by recover()
+                while (len > 0) {
+                    int n = in.read(buf, 0, Math.min(buf.length, len));
+                    if (n < 0) {
+                        throw new EOFException(file.getName());
+                    }
+                    to.write(buf, 0, n);
+                    len -= n;
+                    total += n;
+                }
+            }
+        }
+
+        finally {
+            in.close();
+        }
+    }
+
+    //event count from a block header: magic, version, varint count
+    private static long blockEvents(byte[] block) {
+        long v = 0;
+        for (int i = 5, shift = 0; i < block.length && shift < 64; i++, shift += 7) {
+            v |= (long) (block[i] & 0x7F) << shift;
+            if ((block[i] & 0x80) == 0) {
+                break;
+            }
+        }
+        return v;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,263 @@
+package com.research.siemens.trailblazer;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.uvwxy.footpath.core.TrajectorySimplifier;
+
+/**
+ * Records the events of the running session in SessionFormat. Events go
+ * into one small in-memory block that is committed to a SessionJournal
+ * every COMMIT_EVENTS events or COMMIT_MS ms, whichever comes first; its
+ * buffers are then reused. Only labels are committed right away. Memory
+ * use stays flat however long the session is, no object is created per
+ * step or fix, and a crash loses at most the events since the last
+ * commit.
+ *
+ * With a tolerance, steps go through a TrajectorySimplifier first and only
+ * the ones needed to keep the track within the tolerance are recorded.
+ * The step before a fix, label or any other event is always kept, so
+ * those stay anchored to the track.
+ *
+ * Not thread safe, all calls come from the worker thread. Write errors
+ * are kept and reported by getError(), so recording never throws.
+ */
+
+public class SessionRecorder {
+
+    public static final int COMMIT_EVENTS = 64;
+    public static final long COMMIT_MS = 5000;
+
+    private final SessionJournal journal;
+    private final SessionFormat.Writer block = new SessionFormat.Writer();
+    private int events = 0;
+    private int labels = 0;
+    private int dropped = 0;
+    private TrajectorySimplifier simplifier;
+    //the last step, recorded or dropped once the next one is seen
+    private boolean pending = false;
+    private long pTime;
+    private double pHeading, pX, pY, pAbsX, pAbsY;
+    private long lastCommit = 0;
+    private IOException error;
+
+    public SessionRecorder(File file) {
+        this.journal = new SessionJournal(file);
+    }
+
+    public SessionJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Start a new session, drops anything recorded before.
+     */
+
+    public void start() {
+        start(0);
+    }
+
+    /**
+     * Start a new session, drops anything recorded before.
+     *
+     * @param tolerance steps are dropped as long as the track stays within
+     * this many m of the recorded one, 0 records all steps
+     */
+
+    public void start(double tolerance) {
+        block.reset();
+        block.clearFrame();
+        events = 0;
+        labels = 0;
+        dropped = 0;
+        pending = false;
+        simplifier = tolerance > 0 ? new TrajectorySimplifier(tolerance) : null;
+        error = null;
+        lastCommit = System.currentTimeMillis();
+
+        try {
+            journal.open();
+        }
+
+        catch (IOException e) {
+            error = e;
+        }
+    }
+
+    public boolean isRecording() {
+        return journal.isOpen();
+    }
+
+    //number of events in the session so far
+    public int getEvents() {
+        return events;
+    }
+
+    //number of labels in the session so far
+    public int getLabels() {
+        return labels;
+    }
+
+    //number of steps left out by the simplifier so far
+    public int getDropped() {
+        return dropped;
+    }
+
+    //first write error of this session, null if none
+    public IOException getError() {
+        return error;
+    }
+
+    public void step(long time, double heading, double x, double y, double absX, double absY) {
+        if (simplifier == null) {
+            block.step(time, heading, x, y, absX, absY);
+            added();
+            return;
+        }
+
+        //the first step starts the track
+        if (!simplifier.isAnchored()) {
+            simplifier.anchor(absX, absY);
+            block.step(time, heading, x, y, absX, absY);
+            added();
+            return;
+        }
+
+        //x, y is the same track as absX, absY turned by the initial heading
+        if (simplifier.offer(absX, absY)) {
+            block.step(pTime, pHeading, pX, pY, pAbsX, pAbsY);
+            added();
+        }
+        else if (pending) {
+            dropped++;
+        }
+
+        pending = true;
+        pTime = time;
+        pHeading = heading;
+        pX = x;
+        pY = y;
+        pAbsX = absX;
+        pAbsY = absY;
+    }
+
+    /**
+     * Record the last step if it is still pending, the track starts over
+     * there.
+     */
+
+    private void flush() {
+        if (!pending) {
+            return;
+        }
+        pending = false;
+        block.step(pTime, pHeading, pX, pY, pAbsX, pAbsY);
+        simplifier.anchor(pAbsX, pAbsY);
+        added();
+    }
+
+    public void fix(long time, double heading, double latitude, double longitude, double accuracy) {
+        flush();
+        block.fix(time, heading, latitude, longitude, accuracy);
+        added();
+    }
+
+    /**
+     * The events from here on are in a local frame, see SessionFormat.
+     */
+
+    public void frame(double anchorLatitude, double anchorLongitude, double offsetEast, double offsetNorth) {
+        flush();
+        block.frame(anchorLatitude, anchorLongitude, offsetEast, offsetNorth);
+    }
+
+    public void label(long time, String content) {
+        flush();
+        block.label(time, content);
+        //labels are rare and expensive to repeat, keep them right away
+        events++;
+        labels++;
+        commit();
+    }
+
+    //any other event as JSON text, e.g. fused or gps, committed with the others
+    public void event(String json) {
+        flush();
+        block.event(json);
+        added();
+    }
+
+    private void added() {
+        events++;
+        if (block.count() >= COMMIT_EVENTS) {
+            commit();
+        } else {
+            commitIfDue(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Commit if COMMIT_MS passed since the last commit, also called
+     * periodically so a standing user's last events reach the disk.
+     */
+
+    public void commitIfDue(long now) {
+        if (now - lastCommit >= COMMIT_MS) {
+            commit();
+        }
+    }
+
+    /**
+     * Write the current block to the journal and sync it.
+     */
+
+    public void commit() {
+        lastCommit = System.currentTimeMillis();
+        if (block.count() == 0) {
+            return;
+        }
+
+        if (journal.isOpen() && error == null) {
+            try {
+                journal.append(block);
+                journal.sync();
+            }
+
+            catch (IOException e) {
+                error = e;
+            }
+        }
+
+        block.reset();
+    }
+
+    /**
+     * End the session. The recorded session stays in the journal until
+     * discard() or the next start().
+     *
+     * @throws IOException if any event could not be written
+     */
+
+    public SessionJournal finish() throws IOException {
+        flush();
+        commit();
+        journal.close();
+
+        if (error != null) {
+            throw error;
+        }
+        return journal;
+    }
+
+    /**
+     * Drop the session.
+     */
+
+    public void discard() {
+        block.reset();
+        pending = false;
+        events = 0;
+        labels = 0;
+        journal.delete();
+    }
+}
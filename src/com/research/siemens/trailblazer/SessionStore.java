@@ -0,0 +1,1020 @@
+package com.research.siemens.trailblazer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Saved sessions, each in its own file <id>.session in SessionFormat,
+ * plus a manifest describing them. Listing, uploading a selection and
+ * deleting only read the manifest, never the session files.
+ *
+ * The manifest is append only: every change appends the whole entry as
+ * a frame [magic][length][CRC32][entry] and the last frame of an id wins.
+ * A torn frame from a crash is cut off when the manifest is loaded. The
+ * manifest is rewritten once it is mostly superseded entries.
+ *
+ * An uploaded or deleted entry is written before its file is removed. If
+ * a crash comes in between, the entry wins: load() removes the file
+ * instead of taking it for a session without an entry. The manifest keeps
+ * such entries while their file is there.
+ *
+ * enforceBudget() keeps the saved sessions under a byte budget, first by
+ * compacting old sessions, then by evicting whole sessions.
+ *
+ * An upload can be acknowledged in parts, the entry keeps how many bytes
+ * of the file the server has, so the upload resumes there. A session with
+ * acknowledged bytes is never compacted, that would move the parts.
+ *
+ * All methods are synchronized, the worker and uploads share a store.
+ */
+
+public class SessionStore {
+
+    public static final String MANIFEST = "manifest";
+    public static final String SUFFIX = ".session";
+
+    public static final int MAGIC = 0x54424d31; // "TBM1"
+    public static final int HEADER = 12; // magic, length, crc
+    static final int LOG_MAGIC = 0x54425331; // "TBS1", frames of the old sessions.log
+    public static final String IMPORTED = ".imported"; // next to an old store, how many sessions were moved
+
+    //upload states
+    public static final int SAVED = 0;
+    public static final int UPLOADED = 1;
+    public static final int DELETED = 2;
+
+    //eviction policies
+    public static final String OLDEST_FIRST = "oldest";
+    public static final String LOWEST_VALUE_FIRST = "value";
+
+    //a label is worth this many steps or fixes when judging a session's value
+    public static final int LABEL_VALUE = 100;
+
+    //events per block of a compacted session, so it can still be uploaded in parts
+    public static final int COMPACT_EVENTS = 4096;
+
+    /**
+     * Manifest entry of one session.
+     */
+
+    public static class Entry {
+        public long id;
+        public long start; // time of the first event in ms
+        public String location = "";
+        public String floor = "";
+        public String startPoint = "";
+        public long events;
+        public long labels;
+        public long bytes;
+        public int state = SAVED;
+        public boolean compacted = false;
+        public long acked = 0; // bytes of the file the server acknowledged
+        public boolean queued = false; // the user asked for it to be uploaded
+
+        //how much a session is worth keeping, labels are what's hard to redo
+        public long value() {
+            return events + LABEL_VALUE * labels;
+        }
+
+        public Entry copy() {
+            Entry e = new Entry();
+            e.id = id;
+            e.start = start;
+            e.location = location;
+            e.floor = floor;
+            e.startPoint = startPoint;
+            e.events = events;
+            e.labels = labels;
+            e.bytes = bytes;
+            e.state = state;
+            e.compacted = compacted;
+            e.acked = acked;
+            e.queued = queued;
+            return e;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(state);
+            out.writeLong(id);
+            out.writeLong(start);
+            out.writeUTF(location);
+            out.writeUTF(floor);
+            out.writeUTF(startPoint);
+            out.writeLong(events);
+            out.writeLong(bytes);
+            out.writeLong(labels);
+            out.writeBoolean(compacted);
+            out.writeLong(acked);
+            out.writeBoolean(queued);
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            Entry e = new Entry();
+            e.state = in.readByte();
+            e.id = in.readLong();
+            e.start = in.readLong();
+            e.location = in.readUTF();
+            e.floor = in.readUTF();
+            e.startPoint = in.readUTF();
+            e.events = in.readLong();
+            e.bytes = in.readLong();
+            //added later, older entries end here
+            if (in.available() > 0) {
+                e.labels = in.readLong();
+                e.compacted = in.readBoolean();
+            }
+            if (in.available() > 0) {
+                e.acked = in.readLong();
+                e.queued = in.readBoolean();
+            }
+            return e;
+        }
+    }
+
+    private final File dir;
+    private final File manifest;
+    private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+    private final Map<Long, Entry> gone = new LinkedHashMap<Long, Entry>(); // uploaded or deleted
+    private int records = 0; // frames in the manifest, including superseded ones
+    private boolean loaded = false;
+
+    public SessionStore(File dir) {
+        this.dir = dir;
+        this.manifest = new File(dir, MANIFEST);
+    }
+
+    /**
+     * @return the sessions saved and not yet uploaded or deleted, oldest first
+     */
+
+    public synchronized List<Entry> list() throws IOException {
+        load();
+        List<Entry> list = new ArrayList<Entry>(entries.size());
+        for (Entry e : entries.values()) {
+            list.add(e.copy());
+        }
+        Collections.sort(list, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * @return the entry of a saved session, null if there is none
+     */
+
+    public synchronized Entry get(long id) throws IOException {
+        load();
+        Entry e = entries.get(id);
+        return e == null ? null : e.copy();
+    }
+
+    public synchronized File fileOf(long id) {
+        return new File(dir, id + SUFFIX);
+    }
+
+    /**
+     * Save the session recorded in a journal. The entry's id is made
+     * unique and its size is filled in.
+     *
+     * @return the stored entry
+     */
+
+    public synchronized Entry add(SessionJournal journal, Entry meta) throws IOException {
+        load();
+        Entry e = meta.copy();
+        while (entries.containsKey(e.id) || fileOf(e.id).exists()) {
+            e.id++;
+        }
+
+        File tmp = new File(dir, e.id + SUFFIX + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            BufferedOutputStream bout = new BufferedOutputStream(out, 8192);
+            e.bytes = journal.copyBlocks(bout);
+            bout.flush();
+            out.getFD().sync();
+        }
+
+        finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(fileOf(e.id))) {
+            tmp.delete();
+            throw new IOException("can't rename " + tmp.getName());
+        }
+
+        e.state = SAVED;
+        put(e);
+        return e.copy();
+    }
+
+    /**
+     * Save a session given as bytes in SessionFormat, e.g. when importing.
+     */
+
+    public synchronized Entry add(byte[] session, Entry meta) throws IOException {
+        load();
+        Entry e = meta.copy();
+        while (entries.containsKey(e.id) || fileOf(e.id).exists()) {
+            e.id++;
+        }
+
+        File tmp = new File(dir, e.id + SUFFIX + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(session);
+            out.getFD().sync();
+        }
+
+        finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(fileOf(e.id))) {
+            tmp.delete();
+            throw new IOException("can't rename " + tmp.getName());
+        }
+
+        e.bytes = session.length;
+        e.state = SAVED;
+        put(e);
+        return e.copy();
+    }
+
+    /**
+     * What enforceBudget() did.
+     */
+
+    public static class Report {
+        public int compacted;
+        public long compactedBytes; // bytes saved by compacting
+        public List<Entry> evicted = new ArrayList<Entry>();
+        public long evictedBytes;
+        public long total; // bytes used afterwards
+
+        public boolean dropped() {
+            return !evicted.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "compacted " + compacted + " sessions (" + compactedBytes / 1024 + " KB saved), dropped "
+                    + evicted.size() + " sessions (" + evictedBytes / 1024 + " KB), " + total / 1024 + " KB in use";
+        }
+    }
+
+    /**
+     * @return the bytes used by the saved sessions, from the manifest
+     */
+
+    public synchronized long totalBytes() throws IOException {
+        load();
+        long total = 0;
+        for (Entry e : entries.values()) {
+            total += e.bytes;
+        }
+        return total;
+    }
+
+    /**
+     * Bring the saved sessions under a budget. Old sessions are compacted
+     * first, oldest first; if that isn't enough, sessions are deleted in
+     * the order of the policy. The kept session is neither compacted nor
+     * deleted, it is what the user just saved, so it counts against the
+     * budget with the others.
+     *
+     * @param budget the bytes the sessions may use
+     * @param policy OLDEST_FIRST or LOWEST_VALUE_FIRST
+     * @param keep   the id of the session just added
+     * @return what was compacted and dropped
+     */
+
+    public synchronized Report enforceBudget(long budget, String policy, long keep) throws IOException {
+        Report report = new Report();
+        report.total = totalBytes();
+        if (report.total <= budget) {
+            return report;
+        }
+
+        List<Entry> sessions = list();
+        for (Iterator<Entry> it = sessions.iterator(); it.hasNext(); ) {
+            if (it.next().id == keep) {
+                it.remove();
+            }
+        }
+
+        for (Entry e : sessions) {
+            if (report.total <= budget) {
+                break;
+            }
+            if (e.compacted || e.acked > 0) {
+                continue;
+            }
+
+            long saved = compact(e.id);
+            report.compacted++;
+            report.compactedBytes += saved;
+            report.total -= saved;
+        }
+
+        if (report.total <= budget) {
+            return report;
+        }
+
+        if (LOWEST_VALUE_FIRST.equals(policy)) {
+            Collections.sort(sessions, new Comparator<Entry>() {
+                public int compare(Entry a, Entry b) {
+                    long va = a.value(), vb = b.value();
+                    if (va != vb) {
+                        return va < vb ? -1 : 1;
+                    }
+                    return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+                }
+            });
+        }
+
+        for (Entry e : sessions) {
+            if (report.total <= budget) {
+                break;
+            }
+
+            Entry current = entries.get(e.id);
+            delete(e.id);
+            report.evicted.add(current);
+            report.evictedBytes += current.bytes;
+            report.total -= current.bytes;
+        }
+
+        return report;
+    }
+
+    /**
+     * Re-encode a session in blocks of COMPACT_EVENTS and drop fixes that
+     * repeat the previous fix, the GPS reports the same position while
+     * standing. Sessions with acknowledged bytes are left alone.
+     *
+     * @return the bytes saved
+     */
+
+    public synchronized long compact(long id) throws IOException {
+        load();
+        Entry e = entries.get(id);
+        if (e == null || e.acked > 0) {
+            return 0;
+        }
+
+        final SessionFormat.Writer w = new SessionFormat.Writer();
+        final ByteArrayOutputStream blocks = new ByteArrayOutputStream((int) Math.min(e.bytes, Integer.MAX_VALUE));
+        final long[] counts = new long[2]; // events, labels
+
+        SessionFormat.read(readFile(fileOf(id)), new SessionFormat.Visitor() {
+            boolean hasFix = false;
+            double lastLat, lastLon, lastAccuracy;
+
+            void added() {
+                counts[0]++;
+                if (w.count() >= COMPACT_EVENTS) {
+                    byte[] b = w.toByteArray();
+                    blocks.write(b, 0, b.length);
+                    w.reset();
+                }
+            }
+
+            public void onStep(long time, double heading, double x, double y, double absX, double absY) {
+                w.step(time, heading, x, y, absX, absY);
+                added();
+            }
+
+            public void onFix(long time, double heading, double latitude, double longitude, double accuracy) {
+                if (hasFix && latitude == lastLat && longitude == lastLon && accuracy >= lastAccuracy) {
+                    return; //nothing new
+                }
+
+                hasFix = true;
+                lastLat = latitude;
+                lastLon = longitude;
+                lastAccuracy = accuracy;
+                w.fix(time, heading, latitude, longitude, accuracy);
+                added();
+            }
+
+            public void onLabel(long time, String content) {
+                counts[1]++;
+                w.label(time, content);
+                added();
+            }
+
+            public void onEvent(String json) {
+                w.event(json);
+                added();
+            }
+
+            public void onFrame(double anchorLatitude, double anchorLongitude, double offsetEast,
+                                double offsetNorth) {
+                w.frame(anchorLatitude, anchorLongitude, offsetEast, offsetNorth);
+            }
+        });
+
+        if (w.count() > 0 || blocks.size() == 0) {
+            byte[] b = w.toByteArray();
+            blocks.write(b, 0, b.length);
+        }
+        byte[] data = blocks.toByteArray();
+        File tmp = new File(dir, id + SUFFIX + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        }
+
+        finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(fileOf(id))) {
+            tmp.delete();
+            throw new IOException("can't rename " + tmp.getName());
+        }
+
+        long saved = e.bytes - data.length;
+        e = e.copy();
+        e.bytes = data.length;
+        e.events = counts[0];
+        e.labels = counts[1];
+        e.compacted = true;
+        put(e);
+        return saved;
+    }
+
+    /**
+     * Open one session in SessionFormat, e.g. for uploading.
+     */
+
+    public synchronized InputStream open(long id) throws IOException {
+        return new BufferedInputStream(new FileInputStream(fileOf(id)), 8192);
+    }
+
+    /**
+     * Open part of a session, e.g. the blocks of one upload chunk.
+     */
+
+    public synchronized InputStream open(long id, long offset, long length) throws IOException {
+        InputStream in = open(id);
+        try {
+            long skip = offset;
+            while (skip > 0) {
+                long n = in.skip(skip);
+                if (n <= 0) {
+                    throw new EOFException(fileOf(id).getName());
+                }
+                skip -= n;
+            }
+        }
+
+        catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new Range(in, length);
+    }
+
+    //stream of the first length bytes of another stream
+    private static class Range extends FilterInputStream {
+        private long left;
+
+        Range(InputStream in, long length) {
+            super(in);
+            this.left = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (left <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                left--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (left <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, left));
+            if (n > 0) {
+                left -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, left));
+            left -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), left);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * The server acknowledged the first acked bytes of a session.
+     *
+     * @param bytes the size of the file the acknowledged part was cut from
+     * @return false if the session is gone or its file changed since
+     */
+
+    public synchronized boolean setAcked(long id, long bytes, long acked) throws IOException {
+        load();
+        Entry e = entries.get(id);
+        if (e == null || e.bytes != bytes) {
+            return false;
+        }
+
+        e = e.copy();
+        e.acked = acked;
+        put(e);
+        return true;
+    }
+
+    /**
+     * The session is to be uploaded, keeps trying after a restart.
+     */
+
+    public synchronized void queue(long id) throws IOException {
+        load();
+        Entry e = entries.get(id);
+        if (e == null || e.queued) {
+            return;
+        }
+
+        e = e.copy();
+        e.queued = true;
+        put(e);
+    }
+
+    /**
+     * The session was uploaded, its file is removed.
+     */
+
+    public synchronized void markUploaded(long id) throws IOException {
+        setState(id, UPLOADED);
+    }
+
+    /**
+     * Remove a session.
+     */
+
+    public synchronized void delete(long id) throws IOException {
+        setState(id, DELETED);
+    }
+
+    private void setState(long id, int state) throws IOException {
+        load();
+        Entry e = entries.get(id);
+        if (e == null) {
+            return;
+        }
+
+        e = e.copy();
+        e.state = state;
+        put(e);
+        fileOf(id).delete();
+    }
+
+    //append an entry to the manifest and the map
+    private void put(Entry e) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        e.write(new DataOutputStream(payload));
+        byte[] p = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(p, 0, p.length);
+
+        FileOutputStream out = new FileOutputStream(manifest, true);
+        try {
+            DataOutputStream d = new DataOutputStream(new BufferedOutputStream(out, HEADER + p.length));
+            d.writeInt(MAGIC);
+            d.writeInt(p.length);
+            d.writeInt((int) crc.getValue());
+            d.write(p);
+            d.flush();
+            out.getFD().sync();
+        }
+
+        finally {
+            out.close();
+        }
+
+        records++;
+        keep(e);
+
+        if (records > 2 * entries.size() + 32) {
+            compact();
+        }
+    }
+
+    //the latest entry of an id
+    private void keep(Entry e) {
+        if (e.state == SAVED) {
+            entries.put(e.id, e);
+            gone.remove(e.id);
+        } else {
+            entries.remove(e.id);
+            gone.put(e.id, e);
+        }
+    }
+
+    //rewrite the manifest with the live entries, and the gone ones whose file is still there
+    private void compact() throws IOException {
+        List<Entry> live = new ArrayList<Entry>(entries.values());
+        for (Iterator<Entry> it = gone.values().iterator(); it.hasNext(); ) {
+            Entry e = it.next();
+            if (fileOf(e.id).exists()) {
+                live.add(e);
+            } else {
+                it.remove();
+            }
+        }
+
+        File tmp = new File(dir, MANIFEST + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            DataOutputStream d = new DataOutputStream(new BufferedOutputStream(out, 8192));
+            CRC32 crc = new CRC32();
+            for (Entry e : live) {
+                ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+                e.write(new DataOutputStream(payload));
+                byte[] p = payload.toByteArray();
+                crc.reset();
+                crc.update(p, 0, p.length);
+                d.writeInt(MAGIC);
+                d.writeInt(p.length);
+                d.writeInt((int) crc.getValue());
+                d.write(p);
+            }
+            d.flush();
+            out.getFD().sync();
+        }
+
+        finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(manifest)) {
+            tmp.delete();
+            throw new IOException("can't rename " + tmp.getName());
+        }
+        records = live.size();
+    }
+
+    //read the manifest once, and pick up session files it doesn't know
+    private void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+
+        dir.mkdirs();
+        entries.clear();
+        gone.clear();
+        records = 0;
+
+        if (manifest.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(manifest, "rw");
+            try {
+                long length = raf.length();
+                long pos = 0;
+                CRC32 crc = new CRC32();
+
+                while (pos + HEADER <= length) {
+                    raf.seek(pos);
+                    if (raf.readInt() != MAGIC) {
+                        break;
+                    }
+
+                    int len = raf.readInt();
+                    int sum = raf.readInt();
+                    if (len < 0 || pos + HEADER + len > length) {
+                        break;
+                    }
+
+                    byte[] p = new byte[len];
+                    raf.readFully(p);
+                    crc.reset();
+                    crc.update(p, 0, len);
+                    if ((int) crc.getValue() != sum) {
+                        break;
+                    }
+
+                    Entry e = Entry.read(new DataInputStream(new ByteArrayInputStream(p)));
+                    keep(e);
+                    records++;
+                    pos += HEADER + len;
+                }
+
+                //drops a torn frame from an earlier crash
+                if (pos != length) {
+                    raf.setLength(pos);
+                }
+            }
+
+            finally {
+                raf.close();
+            }
+        }
+
+        loaded = true;
+
+        //a crash between writing a session and its entry leaves the file
+        //without an entry, the data is complete, so add it; a crash between
+        //marking a session uploaded or deleted and removing its file leaves
+        //the file of a gone entry, remove it
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+
+        for (String name : names) {
+            if (name.endsWith(SUFFIX + ".tmp")) {
+                new File(dir, name).delete();
+            } else if (name.endsWith(SUFFIX)) {
+                try {
+                    long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                    if (gone.containsKey(id)) {
+                        new File(dir, name).delete();
+                    } else if (!entries.containsKey(id)) {
+                        File f = new File(dir, name);
+                        Entry e = describe(readFile(f));
+                        e.id = id;
+                        e.bytes = f.length();
+                        put(e);
+                    }
+                }
+
+                catch (NumberFormatException e) {
+                    //not ours
+                }
+
+                catch (IOException e) {
+                    //unreadable, leave it for inspection
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Build an entry from a session's content: start time, event count
+     * and the location fields of its start event. Reads the whole session,
+     * only used for sessions that come without an entry.
+     */
+
+    public static Entry describe(byte[] session) throws IOException {
+        final Entry e = new Entry();
+        e.start = -1;
+
+        SessionFormat.read(session, new SessionFormat.Visitor() {
+            void seen(long time) {
+                e.events++;
+                if (e.start < 0) {
+                    e.start = time;
+                }
+            }
+
+            public void onStep(long time, double heading, double x, double y, double absX, double absY) {
+                seen(time);
+            }
+
+            public void onFix(long time, double heading, double latitude, double longitude, double accuracy) {
+                seen(time);
+            }
+
+            public void onLabel(long time, String content) {
+                seen(time);
+                e.labels++;
+            }
+
+            public void onEvent(String json) {
+                e.events++;
+                try {
+                    JSONObject event = new JSONObject(json);
+                    if ("start".equals(event.optString("type"))) {
+                        e.location = event.optString("location", "");
+                        e.floor = event.optString("floor", "");
+                        e.startPoint = event.optString("start", "");
+                    }
+                }
+
+                catch (JSONException ex) {
+                    //not an object, nothing to describe
+                }
+            }
+
+            public void onFrame(double anchorLatitude, double anchorLongitude, double offsetEast,
+                                double offsetNorth) {
+                //not needed for the entry
+            }
+        });
+
+        e.start = Math.max(e.start, 0);
+        e.id = e.start;
+        return e;
+    }
+
+    /**
+     * Move the sessions of an old single file store into this one and
+     * delete it: sessions.txt, one JSON array of sessions, or the framed
+     * sessions.log.
+     *
+     * Safe to run again after a crash: the number of sessions moved so far
+     * is kept in a file next to the old store, named with IMPORTED, and
+     * those are skipped. The session after them may have been added just
+     * before the crash, it is skipped if the store holds it already.
+     *
+     * @return the number of sessions moved
+     */
+
+    public synchronized int importLegacy(File legacy) throws IOException {
+        File progress = new File(legacy.getPath() + IMPORTED);
+        if (!legacy.exists()) {
+            //a crash after deleting the old store
+            progress.delete();
+            return 0;
+        }
+
+        byte[] data = readFile(legacy);
+        int done = readProgress(progress);
+        int count = 0;
+
+        try {
+            if (data.length >= 4 && (((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16)
+                    | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF)) == LOG_MAGIC) {
+                count = importFrames(data, done, progress);
+            }
+
+            else {
+                String contents = new String(data, "UTF-8").trim();
+                if (contents.length() > 0) {
+                    JSONArray sessions = new JSONArray(contents);
+                    for (int i = 0; i < sessions.length(); i++) {
+                        if (i >= done) {
+                            importSession(SessionFormat.fromJSON(sessions.getJSONArray(i)), i == done, progress, i);
+                        }
+                        count++;
+                    }
+                }
+            }
+        }
+
+        catch (JSONException e) {
+            //keep the file, we don't want to lose data we can't read
+            throw new IOException("unreadable " + legacy.getName() + ": " + e.getMessage());
+        }
+
+        legacy.delete();
+        progress.delete();
+        return Math.max(count - done, 0);
+    }
+
+    //sessions.log frames: [magic][length][crc][SessionFormat or JSON text], up to
+    //the first torn or corrupt frame, like load() and SessionJournal.recover()
+    private int importFrames(byte[] data, int done, File progress) throws IOException, JSONException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        CRC32 crc = new CRC32();
+        int count = 0;
+        int pos = 0;
+
+        while (pos + HEADER <= data.length) {
+            if (in.readInt() != LOG_MAGIC) {
+                break;
+            }
+
+            int len = in.readInt();
+            int sum = in.readInt();
+            if (len < 0 || pos + HEADER + len > data.length) {
+                break;
+            }
+
+            byte[] p = new byte[len];
+            in.readFully(p);
+            crc.reset();
+            crc.update(p, 0, len);
+            if ((int) crc.getValue() != sum) {
+                //torn or corrupt, nothing after it can be trusted to be framed
+                break;
+            }
+            pos += HEADER + len;
+
+            if (count >= done) {
+                byte[] session = SessionFormat.isSession(p) ? p
+                        : SessionFormat.fromJSON(new JSONArray(new String(p, "UTF-8")));
+                importSession(session, count == done, progress, count);
+            }
+            count++;
+        }
+
+        return count;
+    }
+
+    //add the session and count it as moved, unless it is the one a crash may have added already
+    private void importSession(byte[] session, boolean maybeAdded, File progress, int index) throws IOException {
+        Entry meta = describe(session);
+        if (!maybeAdded || !holds(session, meta.id)) {
+            add(session, meta);
+        }
+        writeProgress(progress, index + 1);
+    }
+
+    //true if a saved session with the id add() would start at, or one after it, has this content
+    private boolean holds(byte[] session, long id) throws IOException {
+        load();
+        for (; entries.containsKey(id) || fileOf(id).exists(); id++) {
+            Entry e = entries.get(id);
+            if (e != null && e.bytes == session.length && Arrays.equals(readFile(fileOf(id)), session)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int readProgress(File progress) throws IOException {
+        if (!progress.exists()) {
+            return 0;
+        }
+
+        DataInputStream in = new DataInputStream(new FileInputStream(progress));
+        try {
+            return in.readInt();
+        }
+
+        finally {
+            in.close();
+        }
+    }
+
+    //replaced as a whole, so a crash leaves the old count or the new one
+    private static void writeProgress(File progress, int done) throws IOException {
+        File tmp = new File(progress.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            DataOutputStream d = new DataOutputStream(out);
+            d.writeInt(done);
+            d.flush();
+            out.getFD().sync();
+        }
+
+        finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(progress)) {
+            tmp.delete();
+            throw new IOException("can't rename " + tmp.getName());
+        }
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        long length = f.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(f.getName() + " too large");
+        }
+
+        byte[] b = new byte[(int) length];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(b);
+        }
+
+        finally {
+            in.close();
+        }
+        return b;
+    }
+}
@@ -0,0 +1,162 @@
+package com.research.siemens.trailblazer;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP body with one chunk of a saved session, a byte range of whole
+ * blocks, as a JSON array with one partial session in the JSON event
+ * format. The chunk is streamed from the session file, converted block by
+ * block and, unless turned off, gzipped on the way out, so memory use is
+ * a few small buffers however large the chunk is.
+ *
+ * The body is built again on every writeTo(), so a request can be retried.
+ * getContent() runs writeTo() on a thread of its own into a pipe, for
+ * wrappers that read the body instead of writing it.
+ */
+
+public class SessionUploadEntity extends AbstractHttpEntity {
+
+    public static final int BUFFER = 8192;
+
+    private final SessionStore store;
+    private final long id;
+    private final boolean gzip;
+    private final long offset;
+    private final long length;
+    private volatile long written = 0;
+
+    /**
+     * @param store where the session is saved
+     * @param id the session
+     * @param offset where the chunk starts in the session file, at a block
+     * @param length the length of the chunk, whole blocks
+     * @param gzip compress the body, the server must accept Content-Encoding: gzip
+     */
+
+    public SessionUploadEntity(SessionStore store, long id, long offset, long length, boolean gzip) {
+        this.store = store;
+        this.id = id;
+        this.gzip = gzip;
+        this.offset = offset;
+        this.length = length;
+
+        setContentType("application/json");
+        if (gzip) {
+            setContentEncoding("gzip");
+        }
+        setChunked(true);
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    //unknown until written
+    public long getContentLength() {
+        return -1;
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * The body as writeTo() puts it on the wire. It is written on a thread
+     * of its own while the stream is read; an error there is thrown by
+     * the read that reaches it. Close the stream to stop the thread early.
+     */
+
+    public InputStream getContent() throws IOException {
+        final IOException[] failed = new IOException[1];
+        final PipedOutputStream out = new PipedOutputStream();
+        final PipedInputStream in = new PipedInputStream(out, BUFFER) {
+            @Override
+            public synchronized int read() throws IOException {
+                return check(super.read());
+            }
+
+            @Override
+            public synchronized int read(byte[] b, int off, int len) throws IOException {
+                return check(super.read(b, off, len));
+            }
+
+            //the end of the pipe is only the end of the body if writing it went well
+            private int check(int n) throws IOException {
+                if (n < 0 && failed[0] != null) {
+                    throw failed[0];
+                }
+                return n;
+            }
+        };
+
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    writeTo(out);
+                }
+
+                catch (IOException e) {
+                    failed[0] = e;
+                }
+
+                finally {
+                    try {
+                        out.close();
+                    }
+
+                    catch (IOException e) {
+                        //the reader is gone
+                    }
+                }
+            }
+        }, "upload body " + id).start();
+
+        return in;
+    }
+
+    //bytes put on the wire by the last writeTo()
+    public long getBytesWritten() {
+        return written;
+    }
+
+    public void writeTo(OutputStream wire) throws IOException {
+        written = 0;
+        OutputStream counted = new FilterOutputStream(wire) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                written++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                written += len;
+            }
+        };
+
+        GZIPOutputStream zip = gzip ? new GZIPOutputStream(counted, BUFFER) : null;
+        Writer w = new BufferedWriter(new OutputStreamWriter(zip != null ? zip : counted, "UTF-8"), BUFFER);
+
+        w.write('[');
+        InputStream in = store.open(id, offset, length);
+        try {
+            SessionFormat.writeJSON(in, w);
+        }
+
+        finally {
+            in.close();
+        }
+        w.write(']');
+        w.flush();
+
+        //the connection is closed by the client, not by us
+        if (zip != null) {
+            zip.finish();
+        }
+        counted.flush();
+    }
+}
@@ -0,0 +1,451 @@
+package com.research.siemens.trailblazer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads saved sessions, oldest first, each in chunks of whole blocks of
+ * about CHUNK_BYTES. A 2xx reply acknowledges one chunk; the acknowledged
+ * bytes are kept in the SessionStore manifest, so after a failure, or a
+ * restart, the upload goes on at the first chunk the server hasn't got.
+ * A session is removed only when all of it is acknowledged.
+ *
+ * Every chunk carries an Idempotency-Key of client, session, session size
+ * and offset, so a chunk whose reply was lost can be sent again without
+ * being stored twice. The X-Session-* and X-Chunk-* headers tell the
+ * server how to put the chunks of a session together.
+ *
+ * Up to `parallel` sessions are sent at once, each by its own lane; the
+ * chunks of one session go in order. The lanes share one pooled client,
+ * see pooledClient(), so connections are kept alive between chunks.
+ *
+ * Failures that may pass (no connection, timeouts, 408, 429, 5xx) are
+ * retried after an exponential backoff with jitter, up to MAX_ATTEMPTS in
+ * a row per lane. Any other reply skips the session until the next run.
+ *
+ * Runs on its own threads, the listener is called from them.
+ */
+
+public class UploadQueue {
+
+    public static final long CHUNK_BYTES = 64 * 1024; // stored bytes, about 10x that as JSON
+    public static final long BASE_DELAY = 2000;
+    public static final long MAX_DELAY = 5 * 60 * 1000;
+    public static final int MAX_ATTEMPTS = 8;
+
+    public interface Listener {
+        //all of a session was acknowledged, it is removed from the store
+        public void onUploaded(SessionStore.Entry session);
+
+        //a run ended, pending sessions were meant to go but didn't
+        public void onIdle(int uploaded, int pending, String reply);
+    }
+
+    /**
+     * Counters since the queue was made, for the dev mode dialog and
+     * for tuning `parallel`.
+     */
+
+    public static class Stats {
+        public int requests;
+        public int failures; // errors and non 2xx replies
+        public int sessions; // fully uploaded
+        public long bytes; // request bodies on the wire
+        public long busyMs; // time with a run going on
+        public long totalLatencyMs; // request sent to reply read, summed
+        public long maxLatencyMs;
+
+        public Stats copy() {
+            Stats s = new Stats();
+            s.requests = requests;
+            s.failures = failures;
+            s.sessions = sessions;
+            s.bytes = bytes;
+            s.busyMs = busyMs;
+            s.totalLatencyMs = totalLatencyMs;
+            s.maxLatencyMs = maxLatencyMs;
+            return s;
+        }
+
+        //KB per second while uploading
+        public double throughput() {
+            return busyMs == 0 ? 0 : bytes / 1.024 / busyMs;
+        }
+
+        public long meanLatencyMs() {
+            return requests == 0 ? 0 : totalLatencyMs / requests;
+        }
+
+        @Override
+        public String toString() {
+            return requests + " requests (" + failures + " failed), " + sessions + " sessions, " + bytes / 1024
+                    + " KB at " + Math.round(throughput()) + " KB/s, latency " + meanLatencyMs() + " ms mean, "
+                    + maxLatencyMs + " ms max";
+        }
+    }
+
+    private final SessionStore store;
+    private final HttpClient http;
+    private final String url;
+    private final String client;
+    private final int parallel;
+    private final Listener listener;
+    private final ScheduledExecutorService executor;
+    private final Random random = new Random();
+
+    //the current run, guarded by this
+    private boolean running = false;
+    private boolean resumeOnly;
+    private boolean gzip;
+    private int lanes = 0;
+    private final Set<Long> active = new HashSet<Long>(); // sessions a lane is sending
+    private final Set<Long> skipped = new HashSet<Long>();
+    private int uploaded = 0;
+    private String reply = "";
+    private long busySince;
+    private final Stats stats = new Stats();
+
+    /**
+     * A client for the queue: a thread safe pool of `connections` kept
+     * alive between requests, with timeouts so a flaky link fails and is
+     * retried instead of hanging.
+     */
+
+    public static DefaultHttpClient pooledClient(int connections, int connectTimeout, int readTimeout) {
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, readTimeout);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        ConnManagerParams.setMaxTotalConnections(params, connections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(connections));
+
+        SchemeRegistry schemes = new SchemeRegistry();
+        schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        return new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemes), params);
+    }
+
+    /**
+     * @param http the client, thread safe with at least `parallel` connections
+     * @param url where the chunks are posted
+     * @param client the client's id hash, part of every idempotency key
+     * @param parallel the number of sessions sent at once
+     */
+
+    public UploadQueue(SessionStore store, HttpClient http, String url, String client, int parallel,
+                       Listener listener) {
+        this.store = store;
+        this.http = http;
+        this.url = url;
+        this.client = client;
+        this.parallel = Math.max(parallel, 1);
+        this.listener = listener;
+        this.executor = Executors.newScheduledThreadPool(this.parallel);
+    }
+
+    /**
+     * Upload all saved sessions, the user agreed to it. If a run is going
+     * on it takes them on too.
+     *
+     * @param gzip compress the chunks, the server must accept Content-Encoding: gzip
+     */
+
+    public void start(boolean gzip) {
+        submit(false, gzip);
+    }
+
+    /**
+     * Continue the sessions an earlier run was sending, e.g. on launch.
+     * Others wait for the user's go.
+     */
+
+    public void resume(boolean gzip) {
+        submit(true, gzip);
+    }
+
+    private synchronized void submit(boolean only, boolean zip) {
+        if (running) {
+            resumeOnly &= only;
+        } else {
+            running = true;
+            resumeOnly = only;
+            gzip = zip;
+            skipped.clear();
+            uploaded = 0;
+            reply = "";
+            busySince = System.currentTimeMillis();
+        }
+
+        //lanes that ran out of sessions may have new ones now
+        while (lanes < parallel) {
+            lanes++;
+            executor.execute(new Lane());
+        }
+    }
+
+    public synchronized Stats getStats() {
+        Stats s = stats.copy();
+        if (running) {
+            s.busyMs += System.currentTimeMillis() - busySince;
+        }
+        return s;
+    }
+
+    /**
+     * Stop, a chunk being sent is acknowledged next time.
+     */
+
+    public void shutdown() {
+        executor.shutdownNow();
+        http.getConnectionManager().shutdown();
+    }
+
+    //the oldest session of this run no lane has, null when done
+    private synchronized SessionStore.Entry claim() throws IOException {
+        for (SessionStore.Entry e : store.list()) {
+            if (!active.contains(e.id) && !skipped.contains(e.id) && (!resumeOnly || e.queued)) {
+                active.add(e.id);
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void release(long id, boolean skip) {
+        active.remove(id);
+        if (skip) {
+            skipped.add(id);
+        }
+    }
+
+    private synchronized void sent(long bytes, long latency, boolean ok, String body) {
+        stats.requests++;
+        stats.bytes += bytes;
+        stats.totalLatencyMs += latency;
+        stats.maxLatencyMs = Math.max(stats.maxLatencyMs, latency);
+        if (ok) {
+            reply = body;
+        } else {
+            stats.failures++;
+        }
+    }
+
+    private void done(SessionStore.Entry session) {
+        synchronized (this) {
+            uploaded++;
+            stats.sessions++;
+        }
+        listener.onUploaded(session);
+    }
+
+    //a lane has nothing left, the last one ends the run
+    private void laneDone() {
+        int up, pending = 0;
+        String out;
+
+        synchronized (this) {
+            lanes--;
+            if (lanes > 0) {
+                return;
+            }
+
+            running = false;
+            stats.busyMs += System.currentTimeMillis() - busySince;
+            up = uploaded;
+            out = reply;
+
+            try {
+                for (SessionStore.Entry e : store.list()) {
+                    if (!resumeOnly || e.queued) {
+                        pending++;
+                    }
+                }
+            }
+
+            catch (IOException e) {
+                //nothing to count
+            }
+        }
+
+        listener.onIdle(up, pending, out);
+    }
+
+    /**
+     * Sends one session after the other, a chunk per run().
+     */
+
+    private class Lane implements Runnable {
+        private long current = -1;
+        private int failures = 0; // in a row
+
+        //block ends of the current session, read once per session
+        private long endsId = -1;
+        private long endsBytes = -1;
+        private long[] ends;
+
+        public void run() {
+            try {
+                SessionStore.Entry session;
+                if (current < 0) {
+                    session = claim();
+                    if (session == null) {
+                        laneDone();
+                        return;
+                    }
+                    current = session.id;
+                } else {
+                    session = store.get(current);
+                    if (session == null) {
+                        //dropped meanwhile
+                        release(current, false);
+                        current = -1;
+                        executor.execute(this);
+                        return;
+                    }
+                }
+
+                if (!session.queued) {
+                    store.queue(session.id);
+                }
+
+                long offset = session.acked;
+                long end = chunkEnd(session);
+                int code = post(session, offset, end - offset);
+
+                if (code / 100 == 2) {
+                    failures = 0;
+                    if (end >= session.bytes) {
+                        store.markUploaded(session.id);
+                        release(session.id, false);
+                        current = -1;
+                        done(session);
+                    } else {
+                        //false if the file changed meanwhile, the session is then sent again from the start
+                        store.setAcked(session.id, session.bytes, end);
+                    }
+                    executor.execute(this);
+                    return;
+                }
+
+                if (!retryable(code)) {
+                    release(session.id, true);
+                    current = -1;
+                    executor.execute(this);
+                    return;
+                }
+            }
+
+            catch (IOException e) {
+                //no connection, a timeout, or the session was dropped while being sent
+                e.printStackTrace();
+            }
+
+            failures++;
+            if (failures >= MAX_ATTEMPTS) {
+                //leave the session for the next run
+                if (current >= 0) {
+                    release(current, true);
+                    current = -1;
+                }
+                laneDone();
+                return;
+            }
+            executor.schedule(this, backoff(failures), TimeUnit.MILLISECONDS);
+        }
+
+        //end of the chunk starting at the acknowledged bytes, whole blocks of at least CHUNK_BYTES
+        private long chunkEnd(SessionStore.Entry session) throws IOException {
+            if (endsId != session.id || endsBytes != session.bytes) {
+                InputStream in = store.open(session.id);
+                try {
+                    ends = SessionFormat.blockEnds(in);
+                }
+
+                finally {
+                    in.close();
+                }
+
+                endsId = session.id;
+                endsBytes = session.bytes;
+                if (ends.length == 0 || ends[ends.length - 1] != session.bytes) {
+                    endsId = -1;
+                    throw new IOException("session " + session.id + " changed");
+                }
+            }
+
+            for (long end : ends) {
+                if (end - session.acked >= CHUNK_BYTES) {
+                    return end;
+                }
+            }
+            return session.bytes;
+        }
+    }
+
+    private int post(SessionStore.Entry session, long offset, long length) throws IOException {
+        SessionUploadEntity body = new SessionUploadEntity(store, session.id, offset, length, gzip);
+        HttpPost post = new HttpPost(url);
+        post.setEntity(body);
+        post.setHeader("Accept", "application/json");
+        post.setHeader("Idempotency-Key", client + "-" + session.id + "-" + session.bytes + "-" + offset);
+        post.setHeader("X-Session-Id", String.valueOf(session.id));
+        post.setHeader("X-Session-Bytes", String.valueOf(session.bytes));
+        post.setHeader("X-Chunk-Offset", String.valueOf(offset));
+        post.setHeader("X-Chunk-Length", String.valueOf(length));
+
+        long begin = System.currentTimeMillis();
+        try {
+            HttpResponse response = http.execute(post);
+            int code = response.getStatusLine().getStatusCode();
+
+            //read the reply, so the connection goes back to the pool
+            HttpEntity entity = response.getEntity();
+            String text = entity != null ? EntityUtils.toString(entity) : "";
+            sent(body.getBytesWritten(), System.currentTimeMillis() - begin, code / 100 == 2, text);
+            return code;
+        }
+
+        catch (IOException e) {
+            post.abort();
+            sent(body.getBytesWritten(), System.currentTimeMillis() - begin, false, null);
+            throw e;
+        }
+    }
+
+    private static boolean retryable(int code) {
+        return code == 408 || code == 429 || code / 100 == 5;
+    }
+
+    //exponential, half of it random so clients that failed together don't retry together
+    private long backoff(int failures) {
+        long cap = Math.min(MAX_DELAY, BASE_DELAY << Math.min(failures - 1, 20));
+        return cap / 2 + (long) (random.nextDouble() * (cap / 2));
+    }
+}
@@ -0,0 +1,243 @@
+package de.uvwxy.footpath.core;
+
+/**
+ * Detects steps in the frequency domain. The filtered z values are resampled onto a fixed
+ * grid and a sliding DFT keeps the spectrum of the last WINDOW samples for the bins that
+ * cover walking and running cadences. The strongest bin (refined by parabolic interpolation)
+ * gives the step frequency, and a phase accumulator emits one step per period while the
+ * amplitude of that bin is above a minimum.
+ *
+ * The steps are a period apart, at most MAX_CADENCE_HZ, so step_timeout_ms is not applied:
+ * a timeout tuned for the peak detector (333 ms) would cap running cadences at 3 Hz.
+ *
+ * Every sample costs a constant number of operations (one complex update per bin) and
+ * nothing is allocated after construction.
+ *
+ * Usage:
+ * Feed every sample with addSample(now_ms, z), then call checkForStep() which returns true
+ * once for each emitted step. Registered in StepDetectors as "cadence".
+ *
+ * @author Paul Smith
+ *
+ */
+public class CadenceDetector implements StepDetector {
+	// samples in the sliding window, about 4 s at 30 Hz
+	public static final int WINDOW = 128;
+	// slowest and fastest cadence looked at, in steps per second
+	public static final double MIN_CADENCE_HZ = 0.9;
+	public static final double MAX_CADENCE_HZ = 3.5;
+	// damping of the sliding DFT, keeps rounding errors from accumulating
+	private static final double R = 0.99999;
+	// the minimum amplitude is this fraction of the peak setting
+	public static final double PEAK_RATIO = 0.5;
+	// weight of a new sample in the running mean that is removed from the signal
+	private static final double MEAN_ALPHA = 1.0 / 256.0;
+
+	private final long interval_ms;
+	private final double rN;
+	private final int kMin;
+	private final int nBins;
+
+	// ring buffer of the last WINDOW samples
+	private final double[] window = new double[WINDOW];
+	private int wPointer = 0;
+	private int filled = 0;
+
+	// spectrum and twiddle factors of the bins kMin .. kMin + nBins - 1
+	private final double[] re;
+	private final double[] im;
+	private final double[] cos;
+	private final double[] sin;
+
+	private double minAmplitude;
+	private double mean = 0.0;
+	private boolean meanSet = false;
+	private double lastZ = 0.0;
+	private long nextSample_ms = -1;
+
+	private double cadence = 0.0;
+	private double amplitude = 0.0;
+	private double phase = 0.0;
+	private boolean stepPending = false;
+
+	/**
+	 * @param interval_ms the resampling interval, e.g. StepDetectionEngine.INTERVAL_MS
+	 * @param peak the peak setting, PEAK_RATIO * peak is the amplitude (m/s^2) of the step
+	 *            frequency needed to count as walking
+	 */
+	public CadenceDetector(long interval_ms, double peak) {
+		this.interval_ms = interval_ms;
+		this.minAmplitude = PEAK_RATIO * peak;
+		this.rN = Math.pow(R, WINDOW);
+
+		double fs = 1000.0 / interval_ms;
+		kMin = Math.max(1, (int) Math.floor(MIN_CADENCE_HZ * WINDOW / fs));
+		int kMax = Math.min(WINDOW / 2 - 1, (int) Math.ceil(MAX_CADENCE_HZ * WINDOW / fs));
+		nBins = kMax - kMin + 1;
+
+		re = new double[nBins];
+		im = new double[nBins];
+		cos = new double[nBins];
+		sin = new double[nBins];
+		for (int b = 0; b < nBins; b++) {
+			double w = 2.0 * Math.PI * (kMin + b) / WINDOW;
+			cos[b] = R * Math.cos(w);
+			sin[b] = R * Math.sin(w);
+		}
+	}
+
+	@Override
+	public String getName() {
+		return StepDetectors.CADENCE;
+	}
+
+	@Override
+	public void setPeak(double peak) {
+		this.minAmplitude = PEAK_RATIO * peak;
+	}
+
+	public double getMinAmplitude() {
+		return minAmplitude;
+	}
+
+	public void setMinAmplitude(double minAmplitude) {
+		this.minAmplitude = minAmplitude;
+	}
+
+	/**
+	 * @return the current cadence estimate in steps per second, 0 if not walking
+	 */
+	public double getCadence() {
+		return cadence;
+	}
+
+	/**
+	 * @return the amplitude of the step frequency in m/s^2
+	 */
+	public double getAmplitude() {
+		return amplitude;
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < WINDOW; i++) {
+			window[i] = 0.0;
+		}
+		for (int b = 0; b < nBins; b++) {
+			re[b] = 0.0;
+			im[b] = 0.0;
+		}
+		wPointer = 0;
+		filled = 0;
+		mean = 0.0;
+		meanSet = false;
+		lastZ = 0.0;
+		nextSample_ms = -1;
+		cadence = 0.0;
+		amplitude = 0.0;
+		phase = 0.0;
+		stepPending = false;
+	}
+
+	/**
+	 * Feed a filtered z value. The value is held until the next grid point, so irregular
+	 * sensor rates are fine.
+	 *
+	 * @param now_ms the time stamp of the value
+	 * @param z the filtered z-axis acceleration
+	 */
+	@Override
+	public void addSample(long now_ms, double z) {
+		if (nextSample_ms < 0 || now_ms - nextSample_ms > WINDOW * interval_ms) {
+			// first value or a long gap, start over
+			reset();
+			nextSample_ms = now_ms;
+		}
+		while (nextSample_ms <= now_ms) {
+			// grid points before now see the previous value
+			push(nextSample_ms < now_ms ? lastZ : z);
+			nextSample_ms += interval_ms;
+		}
+		lastZ = z;
+	}
+
+	@Override
+	public boolean usesTimeout() {
+		return false;
+	}
+
+	/**
+	 * @return true once for every step emitted since the last call
+	 */
+	@Override
+	public boolean checkForStep() {
+		if (stepPending) {
+			stepPending = false;
+			return true;
+		}
+		return false;
+	}
+
+	private void push(double z) {
+		if (!meanSet) {
+			mean = z;
+			meanSet = true;
+		}
+		mean += MEAN_ALPHA * (z - mean);
+		double x = z - mean;
+
+		double oldest = window[wPointer];
+		window[wPointer] = x;
+		wPointer = (wPointer + 1) % WINDOW;
+		if (filled < WINDOW) {
+			filled++;
+		}
+
+		// sliding DFT: S_k(n) = R e^(i 2 pi k / N) (S_k(n-1) + x(n) - R^N x(n-N))
+		double delta = x - rN * oldest;
+		int best = -1;
+		double bestPower = 0.0;
+		for (int b = 0; b < nBins; b++) {
+			double r = re[b] + delta;
+			double i = im[b];
+			re[b] = r * cos[b] - i * sin[b];
+			im[b] = r * sin[b] + i * cos[b];
+			double power = re[b] * re[b] + im[b] * im[b];
+			if (power > bestPower) {
+				bestPower = power;
+				best = b;
+			}
+		}
+
+		if (filled < WINDOW || best < 0) {
+			return;
+		}
+
+		// amplitude of a sine wave of that frequency
+		amplitude = 2.0 * Math.sqrt(bestPower) / WINDOW;
+		if (amplitude < minAmplitude) {
+			cadence = 0.0;
+			phase = 0.0;
+			return;
+		}
+
+		// parabolic interpolation between the neighbouring bins
+		double offset = 0.0;
+		if (best > 0 && best < nBins - 1) {
+			double m0 = Math.sqrt(re[best - 1] * re[best - 1] + im[best - 1] * im[best - 1]);
+			double m1 = Math.sqrt(bestPower);
+			double m2 = Math.sqrt(re[best + 1] * re[best + 1] + im[best + 1] * im[best + 1]);
+			double denom = m0 - 2.0 * m1 + m2;
+			if (denom != 0.0) {
+				offset = 0.5 * (m0 - m2) / denom;
+			}
+		}
+		cadence = (kMin + best + offset) * 1000.0 / (interval_ms * (double) WINDOW);
+
+		phase += cadence * interval_ms / 1000.0;
+		if (phase >= 1.0) {
+			phase -= 1.0;
+			stepPending = true;
+		}
+	}
+}
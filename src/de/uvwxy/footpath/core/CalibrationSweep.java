@@ -0,0 +1,311 @@
+package de.uvwxy.footpath.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Offline auto calibration of the step detection parameters. Replays recorded traces with
+ * known step counts, walked distances or both for every combination of a, peak and
+ * step_timeout_ms on a grid, and picks the combination with the smallest error. A trace with
+ * a step count is scored by it; one with only a distance by the distance its detected steps
+ * cover at the given stride length. If traces have both, the stride length is fitted to
+ * their detected step counts.
+ *
+ * The combinations are split over a thread pool with one task per chunk. Traces are
+ * decoded once and shared read only by all tasks; each task has its own engine.
+ *
+ * Usage on a plain JVM:
+ * java -cp bin de.uvwxy.footpath.core.CalibrationSweep [-timer] [-threads N] [-detector NAME]
+ *     [-stride M] walk1.csv:120:88.5 walk2.csv:64 walk3.csv::250
+ *
+ * The result is printed with the keys used in the TrailblazerSettings preferences.
+ *
+ * @author Paul Smith
+ *
+ */
+public class CalibrationSweep {
+	// the stride length Calibrator starts with, in m
+	public static final double DEFAULT_STRIDE = 0.74;
+
+	/**
+	 * A trace together with its ground truth.
+	 */
+	public static class Sample {
+		public final SensorTrace trace;
+		// negative if unknown
+		public final int steps;
+		// walked distance in meters, negative if unknown
+		public final double distance;
+
+		public Sample(SensorTrace trace, int steps, double distance) {
+			if (steps < 0 && distance < 0) {
+				throw new IllegalArgumentException("neither steps nor distance");
+			}
+			this.trace = trace;
+			this.steps = steps;
+			this.distance = distance;
+		}
+	}
+
+	/**
+	 * The best parameters found by a sweep.
+	 */
+	public static class Result {
+		public double a;
+		public double peak;
+		public int timeout;
+		// fitted stride length, NaN if no sample had both steps and a distance
+		public double stride = Double.NaN;
+		// mean relative error over all samples, of the step count or the distance
+		public double error = Double.POSITIVE_INFINITY;
+		public int combinations;
+
+		/**
+		 * @return the result as TrailblazerSettings key=value lines
+		 */
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("a=").append((float) a).append('\n');
+			sb.append("peak=").append((float) peak).append('\n');
+			sb.append("timeout=").append(timeout).append('\n');
+			if (!Double.isNaN(stride)) {
+				sb.append("stride=").append((float) stride).append('\n');
+			}
+			return sb.toString();
+		}
+	}
+
+	private final List<Sample> samples;
+	private final boolean timerSampling;
+	private String detector = StepDetectors.PEAK;
+	// stride length in m, for the samples with only a distance
+	private double stride = DEFAULT_STRIDE;
+
+	private double[] as = range(0.05, 0.95, 0.05);
+	private double[] peaks = range(0.3, 4.0, 0.1);
+	private int[] timeouts = range(200, 600, 20);
+
+	public CalibrationSweep(List<Sample> samples, boolean timerSampling) {
+		this.samples = samples;
+		this.timerSampling = timerSampling;
+	}
+
+	public void setGrid(double[] as, double[] peaks, int[] timeouts) {
+		this.as = as;
+		this.peaks = peaks;
+		this.timeouts = timeouts;
+	}
+
+	/**
+	 * @param detector the name of the detector to calibrate, see StepDetectors
+	 */
+	public void setDetector(String detector) {
+		this.detector = detector;
+	}
+
+	/**
+	 * @param stride the stride length in m the samples with only a distance are scored with
+	 */
+	public void setStride(double stride) {
+		this.stride = stride;
+	}
+
+	public int combinations() {
+		return as.length * peaks.length * timeouts.length;
+	}
+
+	/**
+	 * Run the sweep on a pool of the given size.
+	 *
+	 * @param threads number of worker threads, e.g. Runtime.availableProcessors()
+	 * @return the best combination
+	 */
+	public Result run(int threads) throws InterruptedException {
+		final int total = combinations();
+		// a few chunks per thread, so uneven chunks even out
+		int chunks = Math.max(1, Math.min(total, threads * 8));
+		int chunkSize = (total + chunks - 1) / chunks;
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Result>> futures = new ArrayList<Future<Result>>();
+			for (int from = 0; from < total; from += chunkSize) {
+				final int start = from;
+				final int end = Math.min(total, from + chunkSize);
+				futures.add(pool.submit(new Callable<Result>() {
+					@Override
+					public Result call() {
+						return sweep(start, end);
+					}
+				}));
+			}
+
+			Result best = null;
+			for (Future<Result> f : futures) {
+				Result r;
+				try {
+					r = f.get();
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+				// chunks are in grid order, so ties go to the first combination
+				if (best == null || r.error < best.error) {
+					best = r;
+				}
+			}
+			best.combinations = total;
+			return best;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Evaluate the combinations [start, end) of the grid.
+	 */
+	private Result sweep(int start, int end) {
+		TraceReplay.StepCounter counter = new TraceReplay.StepCounter();
+		StepDetectionEngine engine = new StepDetectionEngine(counter, 0, 0, 0);
+		engine.setDetector(StepDetectors.create(detector, 0));
+		int[] detected = new int[samples.size()];
+		Result best = new Result();
+
+		for (int c = start; c < end; c++) {
+			int ti = c % timeouts.length;
+			int pi = (c / timeouts.length) % peaks.length;
+			int ai = c / (timeouts.length * peaks.length);
+			engine.setA(as[ai]);
+			engine.setPeak(peaks[pi]);
+			engine.setStep_timeout_ms(timeouts[ti]);
+
+			double error = 0.0;
+			for (int s = 0; s < detected.length; s++) {
+				Sample sample = samples.get(s);
+				counter.reset();
+				TraceReplay.replay(sample.trace, engine, timerSampling);
+				detected[s] = counter.steps;
+				error += error(sample, counter.steps);
+			}
+			error /= Math.max(detected.length, 1);
+
+			if (error < best.error) {
+				best.error = error;
+				best.a = as[ai];
+				best.peak = peaks[pi];
+				best.timeout = timeouts[ti];
+				best.stride = fitStride(detected);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return the relative error of the step count, or of the distance covered if only that
+	 *         is known
+	 */
+	private double error(Sample sample, int detected) {
+		if (sample.steps >= 0) {
+			return Math.abs(detected - sample.steps) / (double) Math.max(sample.steps, 1);
+		}
+		return Math.abs(detected * stride - sample.distance) / Math.max(sample.distance, stride);
+	}
+
+	/**
+	 * Least squares fit of distance = stride * steps over all samples with steps and a
+	 * distance, the others were scored with a stride length already.
+	 */
+	private double fitStride(int[] detected) {
+		double sumDN = 0.0;
+		double sumNN = 0.0;
+		for (int s = 0; s < detected.length; s++) {
+			double d = samples.get(s).distance;
+			if (d >= 0 && samples.get(s).steps >= 0) {
+				sumDN += d * detected[s];
+				sumNN += (double) detected[s] * detected[s];
+			}
+		}
+		return sumNN > 0 ? sumDN / sumNN : Double.NaN;
+	}
+
+	public static double[] range(double from, double to, double step) {
+		int n = (int) Math.floor((to - from) / step + 1e-9) + 1;
+		double[] r = new double[n];
+		for (int i = 0; i < n; i++) {
+			// avoid accumulating rounding errors
+			r[i] = Math.round((from + i * step) * 1000.0) / 1000.0;
+		}
+		return r;
+	}
+
+	public static int[] range(int from, int to, int step) {
+		int n = (to - from) / step + 1;
+		int[] r = new int[n];
+		for (int i = 0; i < n; i++) {
+			r[i] = from + i * step;
+		}
+		return r;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		boolean timer = false;
+		String detector = StepDetectors.PEAK;
+		int threads = Runtime.getRuntime().availableProcessors();
+		double stride = DEFAULT_STRIDE;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i++) {
+			if (args[i].equals("-timer")) {
+				timer = true;
+			} else if (args[i].equals("-threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-detector") && i + 1 < args.length) {
+				detector = args[++i];
+			} else if (args[i].equals("-stride") && i + 1 < args.length) {
+				stride = Double.parseDouble(args[++i]);
+			} else {
+				usage();
+				return;
+			}
+		}
+		if (i == args.length) {
+			usage();
+			return;
+		}
+
+		List<Sample> samples = new ArrayList<Sample>();
+		for (; i < args.length; i++) {
+			// file:steps[:distance] or file::distance
+			String[] f = args[i].split(":");
+			int steps = f.length > 1 && f[1].length() > 0 ? Integer.parseInt(f[1]) : -1;
+			double distance = f.length > 2 ? Double.parseDouble(f[2]) : -1.0;
+			if (steps < 0 && distance < 0) {
+				usage();
+				return;
+			}
+			SensorTrace trace = SensorTrace.read(new File(f[0]));
+			samples.add(new Sample(trace, steps, distance));
+		}
+
+		CalibrationSweep sweep = new CalibrationSweep(samples, timer);
+		sweep.setDetector(detector);
+		sweep.setStride(stride);
+		long start = System.currentTimeMillis();
+		Result r = sweep.run(threads);
+		System.out.println("# " + r.combinations + " combinations on " + threads + " threads in "
+				+ (System.currentTimeMillis() - start) + " ms, mean error " + (float) (r.error * 100) + "%");
+		System.out.println("detector=" + detector);
+		System.out.print(r);
+	}
+
+	private static void usage() {
+		System.out.println("usage: CalibrationSweep [-timer] [-threads N] [-detector NAME] [-stride M] "
+				+ "trace.csv:steps[:distance_m] | trace.csv::distance_m ...");
+	}
+}
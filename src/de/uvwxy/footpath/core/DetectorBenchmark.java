@@ -0,0 +1,149 @@
+package de.uvwxy.footpath.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+/**
+ * Pushes the same recorded traces through every detector registered in StepDetectors and
+ * reports the cost per sample, so detectors are chosen on measured numbers. Runs on a plain
+ * JVM, e.g.
+ *
+ * java -cp bin de.uvwxy.footpath.core.DetectorBenchmark [-iterations N] walk1.csv walk2.csv
+ *
+ * Each detector is warmed up before it is measured. Allocations are read from the JVM's per
+ * thread allocation counter where it is available (HotSpot), otherwise they are reported as
+ * n/a.
+ *
+ * @author Paul Smith
+ *
+ */
+public class DetectorBenchmark {
+	private static final int WARMUP_ITERATIONS = 5;
+
+	/**
+	 * Cost of one detector over all traces.
+	 */
+	public static class Result {
+		public String name;
+		public int steps;
+		public double nsPerSample;
+		// NaN if the JVM does not count allocations
+		public double bytesPerSample = Double.NaN;
+
+		@Override
+		public String toString() {
+			return name + ": " + steps + " steps, " + (float) nsPerSample + " ns/sample, "
+					+ (Double.isNaN(bytesPerSample) ? "n/a" : Float.toString((float) bytesPerSample))
+					+ " bytes allocated/sample";
+		}
+	}
+
+	// com.sun.management.ThreadMXBean.getCurrentThreadAllocatedBytes, looked up by reflection
+	// so this class also compiles against the Android libraries
+	private static Object threadBean;
+	private static Method allocatedBytes;
+
+	static {
+		try {
+			Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+			threadBean = factory.getMethod("getThreadMXBean").invoke(null);
+			Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+			allocatedBytes = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+			allocatedBytes.invoke(threadBean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			allocatedBytes = null;
+		}
+	}
+
+	/**
+	 * @return the bytes allocated by the current thread so far, -1 if unknown
+	 */
+	private static long allocated() {
+		if (allocatedBytes == null) {
+			return -1;
+		}
+		try {
+			return ((Long) allocatedBytes.invoke(threadBean, Thread.currentThread().getId())).longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Measure one detector over all traces.
+	 *
+	 * @param name the registered name of the detector
+	 * @param traces the decoded traces
+	 * @param iterations how often all traces are replayed while measuring
+	 * @param a, peak, timeout the calibration to run with
+	 */
+	public static Result measure(String name, SensorTrace[] traces, int iterations,
+			double a, double peak, int timeout) {
+		TraceReplay.StepCounter counter = new TraceReplay.StepCounter();
+		StepDetectionEngine engine = new StepDetectionEngine(counter, a, peak, timeout);
+		engine.setDetector(StepDetectors.create(name, peak));
+
+		long samples = 0;
+		for (SensorTrace trace : traces) {
+			samples += trace.size();
+		}
+
+		for (int w = 0; w < WARMUP_ITERATIONS; w++) {
+			for (SensorTrace trace : traces) {
+				TraceReplay.replay(trace, engine, false);
+			}
+		}
+
+		Result r = new Result();
+		r.name = name;
+		counter.reset();
+		long bytesBefore = allocated();
+		long start = System.nanoTime();
+		for (int it = 0; it < iterations; it++) {
+			for (SensorTrace trace : traces) {
+				TraceReplay.replay(trace, engine, false);
+			}
+		}
+		long ns = System.nanoTime() - start;
+		long bytesAfter = allocated();
+
+		long total = Math.max(samples * iterations, 1);
+		r.steps = counter.steps / Math.max(iterations, 1);
+		r.nsPerSample = ns / (double) total;
+		if (bytesBefore >= 0 && bytesAfter >= 0) {
+			r.bytesPerSample = (bytesAfter - bytesBefore) / (double) total;
+		}
+		return r;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int iterations = 20;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i++) {
+			if (args[i].equals("-iterations") && i + 1 < args.length) {
+				iterations = Integer.parseInt(args[++i]);
+			} else {
+				usage();
+				return;
+			}
+		}
+		if (i == args.length) {
+			usage();
+			return;
+		}
+
+		SensorTrace[] traces = new SensorTrace[args.length - i];
+		for (int t = 0; i < args.length; i++, t++) {
+			traces[t] = SensorTrace.read(new File(args[i]));
+		}
+
+		for (String name : StepDetectors.NAMES) {
+			System.out.println(measure(name, traces, iterations, 0.4, 1.2, 333));
+		}
+	}
+
+	private static void usage() {
+		System.out.println("usage: DetectorBenchmark [-iterations N] trace.csv...");
+	}
+}
@@ -0,0 +1,196 @@
+package de.uvwxy.footpath.core;
+
+/**
+ * Decides how often to ask for a GPS fix, from the steps and the quality of the fixes. GPS
+ * costs the most battery of all sensors, and much of a mapping walk is spent where a fix
+ * adds little: standing at a label, or deep inside a building where the fixes are poor or
+ * don't come at all.
+ *
+ * Walking with good fixes, a fix is wanted every WALKING ms. Without a step for STILL_MS the
+ * user is standing and it is STANDING. After POOR_FIXES poor or missed fixes in a row the
+ * user is taken to be indoors, and the interval doubles with every further one, up to
+ * INDOORS while walking and MAX_INTERVAL while standing. When the fixes turn poor (walking
+ * in) or good again (walking out) the next BURST fixes come every MIN_INTERVAL, so the
+ * track is anchored right at the door; the first fixes of a session too.
+ *
+ * With intervals of more than WARM ms, turning GPS off in between saves more than a warm
+ * start costs; a caller that does so reports a search that found nothing in SEARCH_MS as
+ * missed. The scheduler counts the fixes it asked for, the ones delivered and the ones
+ * good enough to use, and how long GPS was on.
+ *
+ * Not thread safe, all calls come from one thread.
+ *
+ * @author Paul Smith
+ *
+ */
+public class FixScheduler {
+	// intervals between fixes, in ms
+	public static final long MIN_INTERVAL = 2000;
+	public static final long WALKING = 6000;
+	public static final long STANDING = 30000;
+	public static final long INDOORS = 30000;
+	public static final long MAX_INTERVAL = 120000;
+	// GPS is turned off between fixes further apart than this
+	public static final long WARM = 10000;
+	// a fix not found after this long is missed
+	public static final long SEARCH_MS = 30000;
+	// standing after this long without a step
+	public static final long STILL_MS = 10000;
+	// fixes less accurate than this, in m, are poor
+	public static final double POOR_ACCURACY = 30;
+	// poor or missed fixes in a row to be indoors
+	public static final int POOR_FIXES = 3;
+	// fixes at MIN_INTERVAL at the start and at a door
+	public static final int BURST = 3;
+
+	private long lastStep;
+	private int poor; // poor or missed fixes in a row
+	private boolean good; // the last fix was good
+	private int burst;
+
+	private int requested, delivered, used, missed;
+	private boolean on = false;
+	private long onSince, onMs;
+
+	public FixScheduler() {
+		reset(0);
+	}
+
+	public void reset(long now) {
+		lastStep = now;
+		poor = 0;
+		good = false;
+		burst = BURST;
+		requested = delivered = used = missed = 0;
+		on = false;
+		onMs = 0;
+	}
+
+	/**
+	 * A step was taken.
+	 *
+	 * @return true if the user started walking again, the next fix is wanted sooner
+	 */
+	public boolean onStep(long now) {
+		boolean wasStanding = isStanding(now);
+		lastStep = now;
+		return wasStanding;
+	}
+
+	public boolean isStanding(long now) {
+		return now - lastStep >= STILL_MS;
+	}
+
+	/**
+	 * A fix was delivered.
+	 *
+	 * @return true if it is good enough to use
+	 */
+	public boolean onFix(long now, double accuracy) {
+		requested++;
+		delivered++;
+		boolean ok = accuracy <= POOR_ACCURACY;
+		if (ok) {
+			used++;
+		}
+		quality(ok);
+		return ok;
+	}
+
+	/**
+	 * A search for a fix found nothing in SEARCH_MS.
+	 */
+	public void onMissed(long now) {
+		requested++;
+		missed++;
+		quality(false);
+	}
+
+	private void quality(boolean ok) {
+		if (burst > 0) {
+			burst--;
+		}
+		if (ok && poor >= POOR_FIXES) {
+			// walked out
+			burst = BURST;
+		} else if (!ok && good) {
+			// walking in, maybe
+			burst = BURST;
+		}
+		poor = ok ? 0 : poor + 1;
+		good = ok;
+	}
+
+	/**
+	 * @return ms from the last fix (or miss) to the next one wanted
+	 */
+	public long getInterval(long now) {
+		if (burst > 0) {
+			return MIN_INTERVAL;
+		}
+		boolean standing = isStanding(now);
+		long interval = standing ? STANDING : WALKING;
+		if (poor >= POOR_FIXES) {
+			// indoors, double with every further poor fix
+			int doublings = Math.min(poor - POOR_FIXES + 1, 16);
+			interval = Math.max(interval, WALKING << doublings);
+			interval = Math.min(interval, standing ? MAX_INTERVAL : INDOORS);
+		}
+		return interval;
+	}
+
+	/**
+	 * @return true if GPS should be turned off until the next fix is wanted
+	 */
+	public boolean isSleeping(long now) {
+		return getInterval(now) > WARM;
+	}
+
+	/**
+	 * GPS was turned on or off.
+	 */
+	public void setOn(long now, boolean on) {
+		if (on == this.on) {
+			return;
+		}
+		if (on) {
+			onSince = now;
+		} else {
+			onMs += now - onSince;
+		}
+		this.on = on;
+	}
+
+	public boolean isOn() {
+		return on;
+	}
+
+	/**
+	 * @return ms GPS was on so far
+	 */
+	public long getOnMs(long now) {
+		return on ? onMs + now - onSince : onMs;
+	}
+
+	/**
+	 * @return fixes asked for: delivered and missed
+	 */
+	public int getRequested() {
+		return requested;
+	}
+
+	public int getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * @return delivered fixes good enough to use
+	 */
+	public int getUsed() {
+		return used;
+	}
+
+	public int getMissed() {
+		return missed;
+	}
+}
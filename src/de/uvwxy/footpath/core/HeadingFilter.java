@@ -0,0 +1,96 @@
+package de.uvwxy.footpath.core;
+
+/**
+ * Complementary filter for the compass bearing. The heading is integrated from the
+ * gyroscope's turn rate on every sample, which is cheap and smooth, and pulled towards the
+ * magnetometer bearing at a low rate, which removes the gyroscope drift without passing on
+ * the short term disturbances near steel.
+ *
+ * All angles are in degrees in (-180, 180], like the azimuth from the rotation matrix.
+ *
+ * @author Paul Smith
+ *
+ */
+public class HeadingFilter {
+	// how often the magnetometer bearing is used for a correction
+	public static final long CORRECTION_INTERVAL_MS = 200;
+	// fraction of the difference to the magnetometer removed per correction, ~10 s time constant
+	public static final double CORRECTION_GAIN = 0.02;
+	// longer gaps between gyroscope values are not integrated
+	private static final long MAX_GAP_MS = 500;
+
+	private double heading = 0.0;
+	private boolean initialized = false;
+	private long lastRate_ms = -1;
+	private long lastCorrection_ms = -1;
+
+	public void reset() {
+		heading = 0.0;
+		initialized = false;
+		lastRate_ms = -1;
+		lastCorrection_ms = -1;
+	}
+
+	/**
+	 * @return true once the first magnetometer bearing has been seen
+	 */
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	public double getHeading() {
+		return heading;
+	}
+
+	/**
+	 * Integrate the turn rate since the last call.
+	 *
+	 * @param now_ms the time stamp of the rate
+	 * @param rate_deg_s the turn rate about the vertical axis, clockwise positive
+	 */
+	public void integrate(long now_ms, double rate_deg_s) {
+		if (initialized && lastRate_ms >= 0) {
+			long dt_ms = now_ms - lastRate_ms;
+			if (dt_ms > 0 && dt_ms < MAX_GAP_MS) {
+				heading = wrap(heading + rate_deg_s * dt_ms / 1000.0);
+			}
+		}
+		lastRate_ms = now_ms;
+	}
+
+	/**
+	 * @return true if a magnetometer bearing is due for a correction
+	 */
+	public boolean needsCorrection(long now_ms) {
+		return !initialized || now_ms - lastCorrection_ms >= CORRECTION_INTERVAL_MS;
+	}
+
+	/**
+	 * Pull the heading towards the magnetometer bearing. The first bearing is taken as is.
+	 *
+	 * @param now_ms the time stamp of the bearing
+	 * @param azimuth the bearing from the magnetometer
+	 */
+	public void correct(long now_ms, double azimuth) {
+		if (!initialized) {
+			heading = wrap(azimuth);
+			initialized = true;
+		} else {
+			heading = wrap(heading + CORRECTION_GAIN * wrap(azimuth - heading));
+		}
+		lastCorrection_ms = now_ms;
+	}
+
+	/**
+	 * @return the angle mapped into (-180, 180]
+	 */
+	public static double wrap(double deg) {
+		while (deg > 180.0) {
+			deg -= 360.0;
+		}
+		while (deg <= -180.0) {
+			deg += 360.0;
+		}
+		return deg;
+	}
+}
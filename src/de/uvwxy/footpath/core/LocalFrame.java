@@ -0,0 +1,93 @@
+package de.uvwxy.footpath.core;
+
+/**
+ * Local east-north-up frame anchored at one GPS fix, so fixes and dead reckoned steps can
+ * be compared in meters. The projection is the tangent plane at the anchor with the WGS84
+ * radii of curvature there: a multiplication per coordinate, no trigonometry per point.
+ * Within a few km of the anchor it is off by less than a few dm, much less than a GPS fix.
+ *
+ * Up is not tracked, fixes and steps are on a floor.
+ *
+ * @author Paul Smith
+ *
+ */
+public class LocalFrame {
+	// WGS84
+	private static final double A = 6378137.0;
+	private static final double E2 = 6.69437999014e-3;
+
+	// fixes less accurate than this, in m, don't anchor a frame
+	public static final double GOOD_ACCURACY = 20;
+
+	private boolean anchored = false;
+	private double anchorLat, anchorLon;
+	// m per degree at the anchor
+	private double eastPerDeg, northPerDeg;
+
+	public LocalFrame() {
+	}
+
+	public LocalFrame(double latitude, double longitude) {
+		anchor(latitude, longitude);
+	}
+
+	public void reset() {
+		anchored = false;
+	}
+
+	public boolean isAnchored() {
+		return anchored;
+	}
+
+	/**
+	 * Put the origin of the frame at a position.
+	 */
+	public void anchor(double latitude, double longitude) {
+		double s = Math.sin(Math.toRadians(latitude));
+		double w = 1 - E2 * s * s;
+		double n = A / Math.sqrt(w); // prime vertical radius
+		double m = A * (1 - E2) / (w * Math.sqrt(w)); // meridional radius
+		anchorLat = latitude;
+		anchorLon = longitude;
+		eastPerDeg = Math.toRadians(n * Math.cos(Math.toRadians(latitude)));
+		northPerDeg = Math.toRadians(m);
+		anchored = true;
+	}
+
+	public double getAnchorLatitude() {
+		return anchorLat;
+	}
+
+	public double getAnchorLongitude() {
+		return anchorLon;
+	}
+
+	/**
+	 * @return m east of the anchor
+	 */
+	public double east(double longitude) {
+		double d = longitude - anchorLon;
+		// across the date line
+		if (d > 180) {
+			d -= 360;
+		} else if (d < -180) {
+			d += 360;
+		}
+		return d * eastPerDeg;
+	}
+
+	/**
+	 * @return m north of the anchor
+	 */
+	public double north(double latitude) {
+		return (latitude - anchorLat) * northPerDeg;
+	}
+
+	public double latitude(double north) {
+		return anchorLat + north / northPerDeg;
+	}
+
+	public double longitude(double east) {
+		return anchorLon + east / eastPerDeg;
+	}
+}
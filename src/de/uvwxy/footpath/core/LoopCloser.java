@@ -0,0 +1,350 @@
+package de.uvwxy.footpath.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Corrects the drift of a dead reckoned track with repeated labels. A label given twice in
+ * one walk, like "Room 201", says the two places are the same: the gap between the two
+ * positions is the drift accumulated in between. The track between them is a chain of
+ * poses, and its drift has two parts: the heading, which wanders (a gyro drifts, the
+ * compass is pulled by steel), and the position, which gets a little noise with every
+ * step. A closure first turns each step in the loop by a heading error growing linearly
+ * with the distance walked up to it, fitted to close the loop as well as one angle can
+ * (a few Gauss-Newton iterations). What remains is spread over the steps by the fraction
+ * of the distance walked, the least squares solution for noise per m walked. Later steps
+ * keep the turn and the shift of the closing step.
+ *
+ * Closures are applied as they come, each one only touches the steps since the last time
+ * its label was seen, so the work is linear in them. A later closure over an earlier one
+ * bends it a little; that is accepted for the sake of not solving the whole graph again.
+ * A gap larger than MAX_DRIFT of the distance walked (plus MIN_GAP) is taken to be two
+ * places with the same name and is not closed.
+ *
+ * Only the steps a closure can still touch are held: those since the oldest label seen, or
+ * just the last step without labels. Steps before it are dropped when the arrays fill up,
+ * and indices count from the oldest step held. So that a label at the start of a long walk
+ * doesn't keep all of it, at most MAX_STEPS steps are held; labels older than that are
+ * forgotten and can no longer close a loop. Memory stays under 32 bytes per held step.
+ *
+ * Positions are m in the frame of absX and absY. Not thread safe, all calls come from one
+ * thread.
+ *
+ * @author Paul Smith
+ *
+ */
+public class LoopCloser {
+	// dead reckoning drifts by much less than this fraction of the distance walked
+	public static final double MAX_DRIFT = 0.2;
+	// gaps below this are always closed, in m
+	public static final double MIN_GAP = 5;
+	// the heading is not turned by more than this over a loop
+	public static final double MAX_TURN = Math.toRadians(30);
+	private static final int ITERATIONS = 3;
+	// steps held at most, about 45 km of walking; labels before that are forgotten
+	public static final int MAX_STEPS = 1 << 16;
+
+	private int size = 0;
+	private int base = 0; // the number of steps dropped before the ones held
+	private long[] time = new long[256];
+	private double[] x = new double[256], y = new double[256]; // corrected positions
+	private double[] walked = new double[256]; // distance since the start, uncorrected
+	// raw position of the last step, and the turn of the steps since the last closure
+	private double rawX, rawY, turn, cosTurn, sinTurn;
+
+	// label content to the number of the step it was last seen at, counting dropped steps
+	private final HashMap<String, Integer> labels = new HashMap<String, Integer>();
+	private int closures = 0;
+	private int rejected = 0;
+
+	// the last closure
+	private long closedFrom, closedTo;
+	private double gapX, gapY, gapTurn;
+
+	public LoopCloser() {
+		reset(0);
+	}
+
+	/**
+	 * Start a new track at the origin.
+	 */
+	public void reset(long start) {
+		size = 0;
+		base = 0;
+		rawX = rawY = 0;
+		setTurn(0);
+		labels.clear();
+		closures = 0;
+		rejected = 0;
+		append(start, 0, 0, 0);
+	}
+
+	/**
+	 * Add a step at its dead reckoned position.
+	 */
+	public void step(long t, double absX, double absY) {
+		double dx = absX - rawX;
+		double dy = absY - rawY;
+		rawX = absX;
+		rawY = absY;
+		append(t, x[size - 1] + cosTurn * dx - sinTurn * dy, y[size - 1] + sinTurn * dx + cosTurn * dy,
+				walked[size - 1] + Math.sqrt(dx * dx + dy * dy));
+	}
+
+	private void setTurn(double a) {
+		turn = a;
+		cosTurn = Math.cos(a);
+		sinTurn = Math.sin(a);
+	}
+
+	private void append(long t, double cx, double cy, double w) {
+		if (size == time.length) {
+			makeRoom();
+		}
+		time[size] = t;
+		x[size] = cx;
+		y[size] = cy;
+		walked[size] = w;
+		size++;
+	}
+
+	// drop what no closure can touch if that frees a quarter, else grow, else forget old labels
+	private void makeRoom() {
+		if (drop() >= time.length / 4) {
+			return;
+		}
+		if (time.length < MAX_STEPS) {
+			int n = Math.min(time.length * 2, MAX_STEPS);
+			time = grow(time, n);
+			x = grow(x, n);
+			y = grow(y, n);
+			walked = grow(walked, n);
+			return;
+		}
+
+		int keep = base + size - MAX_STEPS / 2;
+		for (Iterator<Integer> it = labels.values().iterator(); it.hasNext();) {
+			if (it.next() < keep) {
+				it.remove();
+			}
+		}
+		drop();
+	}
+
+	// drop the steps before the oldest label, the last step stays; returns how many
+	private int drop() {
+		int oldest = base + size - 1;
+		for (int i : labels.values()) {
+			oldest = Math.min(oldest, i);
+		}
+		int n = oldest - base;
+		if (n > 0) {
+			size -= n;
+			System.arraycopy(time, n, time, 0, size);
+			System.arraycopy(x, n, x, 0, size);
+			System.arraycopy(y, n, y, 0, size);
+			System.arraycopy(walked, n, walked, 0, size);
+			base = oldest;
+		}
+		return n;
+	}
+
+	private long[] grow(long[] a, int n) {
+		long[] b = new long[n];
+		System.arraycopy(a, 0, b, 0, size);
+		return b;
+	}
+
+	private double[] grow(double[] a, int n) {
+		double[] b = new double[n];
+		System.arraycopy(a, 0, b, 0, size);
+		return b;
+	}
+
+	/**
+	 * A label at the last step. Labels are the same if they only differ in case and
+	 * surrounding white space.
+	 *
+	 * @return true if it closed a loop
+	 */
+	public boolean label(String content) {
+		String key = content.trim().toLowerCase(Locale.US);
+		if (key.length() == 0) {
+			return false;
+		}
+		int to = size - 1;
+		Integer seen = labels.put(key, base + to);
+		if (seen == null || seen == base + to) {
+			return false;
+		}
+
+		int from = seen - base;
+		double dx = x[to] - x[from];
+		double dy = y[to] - y[from];
+		double length = walked[to] - walked[from];
+		if (length <= 0) {
+			return false;
+		}
+		if (Math.sqrt(dx * dx + dy * dy) > MIN_GAP + MAX_DRIFT * length) {
+			// a different place, start over from here
+			rejected++;
+			return false;
+		}
+
+		double rate = fitTurn(from, to, length, dx, dy);
+
+		// turn the steps, then spread what is left of the gap
+		double px = x[from], py = y[from]; // the step before i, as it was
+		for (int i = from + 1; i <= to; i++) {
+			double a = rate * (walked[i] - walked[from]);
+			double c = Math.cos(a), s = Math.sin(a);
+			double sx = x[i] - px, sy = y[i] - py;
+			px = x[i];
+			py = y[i];
+			x[i] = x[i - 1] + c * sx - s * sy;
+			y[i] = y[i - 1] + s * sx + c * sy;
+		}
+		double rx = x[to] - x[from];
+		double ry = y[to] - y[from];
+		for (int i = from + 1; i <= to; i++) {
+			double f = (walked[i] - walked[from]) / length;
+			x[i] -= f * rx;
+			y[i] -= f * ry;
+		}
+		setTurn(turn + rate * length);
+
+		closedFrom = time[from];
+		closedTo = time[to];
+		gapX = dx;
+		gapY = dy;
+		gapTurn = rate * length;
+		closures++;
+		return true;
+	}
+
+	/**
+	 * Find the heading error per m walked that best closes the loop, i.e. minimizes the
+	 * gap left when step i is turned by rate times the distance walked from the first
+	 * label up to it.
+	 */
+	private double fitTurn(int from, int to, double length, double dx, double dy) {
+		double rate = 0;
+		double ex = dx, ey = dy; // the gap at this rate
+		for (int n = 0; n < ITERATIONS; n++) {
+			// derivative of the gap by the rate
+			double gx = 0, gy = 0;
+			for (int i = from + 1; i <= to; i++) {
+				double u = walked[i] - walked[from];
+				double a = rate * u;
+				double c = Math.cos(a), s = Math.sin(a);
+				double sx = x[i] - x[i - 1], sy = y[i] - y[i - 1];
+				// d/da of the turned step is the turned step turned by another 90 deg
+				gx -= u * (s * sx + c * sy);
+				gy += u * (c * sx - s * sy);
+			}
+			double gg = gx * gx + gy * gy;
+			if (gg == 0) {
+				break;
+			}
+			rate -= (ex * gx + ey * gy) / gg;
+			rate = Math.max(-MAX_TURN / length, Math.min(MAX_TURN / length, rate));
+
+			ex = 0;
+			ey = 0;
+			for (int i = from + 1; i <= to; i++) {
+				double a = rate * (walked[i] - walked[from]);
+				double c = Math.cos(a), s = Math.sin(a);
+				double sx = x[i] - x[i - 1], sy = y[i] - y[i - 1];
+				ex += c * sx - s * sy;
+				ey += s * sx + c * sy;
+			}
+		}
+		return rate;
+	}
+
+	/**
+	 * @return the number of steps held, counting the origin while it is held
+	 */
+	public int size() {
+		return size;
+	}
+
+	public long getTime(int i) {
+		return time[i];
+	}
+
+	/**
+	 * @return the corrected position of step i in m east
+	 */
+	public double getX(int i) {
+		return x[i];
+	}
+
+	/**
+	 * @return the corrected position of step i in m north
+	 */
+	public double getY(int i) {
+		return y[i];
+	}
+
+	/**
+	 * @return the corrected position of the last step in m east
+	 */
+	public double getX() {
+		return x[size - 1];
+	}
+
+	/**
+	 * @return the corrected position of the last step in m north
+	 */
+	public double getY() {
+		return y[size - 1];
+	}
+
+	public int getClosures() {
+		return closures;
+	}
+
+	/**
+	 * @return the number of repeated labels too far apart to be closed
+	 */
+	public int getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * @return the time of the step the last closure started at
+	 */
+	public long getClosedFrom() {
+		return closedFrom;
+	}
+
+	/**
+	 * @return the time of the step the last closure ended at
+	 */
+	public long getClosedTo() {
+		return closedTo;
+	}
+
+	/**
+	 * @return the drift the last closure took out in m east
+	 */
+	public double getGapX() {
+		return gapX;
+	}
+
+	/**
+	 * @return the drift the last closure took out in m north
+	 */
+	public double getGapY() {
+		return gapY;
+	}
+
+	/**
+	 * @return the turn the last closure gave its closing step, in degrees counterclockwise
+	 */
+	public double getGapTurn() {
+		return Math.toDegrees(gapTurn);
+	}
+}
@@ -0,0 +1,351 @@
+package de.uvwxy.footpath.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Particle filter fusing dead reckoned steps with GPS fixes. Each particle is a position in
+ * meters east and north in a LocalFrame, a heading bias (the compass error) and a stride scale
+ * (the error of the calibrated stride). A step moves every particle by its own scaled
+ * stride along the compass heading plus its own bias, with some noise; a fix weights the
+ * particles by how well they match it, given the fix's accuracy. When few particles carry
+ * most of the weight they are resampled.
+ *
+ * The filter starts at the first fix: the particles are spread around it by its accuracy,
+ * steps before that are ignored.
+ *
+ * The particles are kept in fixed primitive arrays, and resampling copies into scratch
+ * arrays that are then swapped in, so no object is created per step or fix. With an
+ * executor, steps and weights are computed in slices on its threads; the slices have their
+ * own random generators, so they don't contend.
+ *
+ * Not thread safe, all calls come from one thread.
+ *
+ * @author Paul Smith
+ *
+ */
+public class ParticleFilter {
+	// noise added per step
+	public static final double HEADING_NOISE = Math.toRadians(5);
+	public static final double STRIDE_NOISE = 0.1; // fraction of the stride
+	public static final double BIAS_DRIFT = Math.toRadians(0.5);
+	public static final double SCALE_DRIFT = 0.005;
+	// spread of the particles at the first fix
+	public static final double INITIAL_BIAS = Math.toRadians(15);
+	public static final double INITIAL_SCALE = 0.1;
+	// fixes are not trusted more than this, in m
+	public static final double MIN_ACCURACY = 3;
+	// resample when the effective number of particles falls below this fraction
+	public static final double RESAMPLE_THRESHOLD = 0.5;
+
+	private final int n;
+	private double[] x, y, bias, scale, w;
+	private double[] nx, ny, nbias, nscale; // resampling scratch
+	private final Slice[] slices;
+	private final List<Slice> tasks;
+	private final ExecutorService executor;
+	private final Random random;
+
+	private boolean initialized = false;
+	private int resamples = 0;
+
+	// weighted mean, updated after every step and fix
+	private double meanX, meanY, meanBias, meanScale, spread;
+
+	/**
+	 * A part of the particles, worked on by one thread.
+	 */
+	private class Slice implements Callable<Double> {
+		final int from, to;
+		final Random random;
+		boolean weighting;
+		double heading, stride, east, north, inv2var;
+
+		Slice(int from, int to, long seed) {
+			this.from = from;
+			this.to = to;
+			this.random = new Random(seed);
+		}
+
+		// returns the sum of the weights of the slice when weighting
+		public Double call() {
+			if (weighting) {
+				return weigh(from, to, east, north, inv2var);
+			}
+			move(from, to, heading, stride, random);
+			return 0.0;
+		}
+	}
+
+	/**
+	 * @param particles the number of particles
+	 * @param executor runs the slices, or null to do everything on the calling thread
+	 * @param threads the number of slices for the executor
+	 * @param seed for the random generators, so a replay gives the same track
+	 */
+	public ParticleFilter(int particles, ExecutorService executor, int threads, long seed) {
+		if (particles <= 0) {
+			throw new IllegalArgumentException("particles " + particles);
+		}
+		this.n = particles;
+		this.executor = threads > 1 ? executor : null;
+		this.random = new Random(seed);
+
+		x = new double[n];
+		y = new double[n];
+		bias = new double[n];
+		scale = new double[n];
+		w = new double[n];
+		nx = new double[n];
+		ny = new double[n];
+		nbias = new double[n];
+		nscale = new double[n];
+
+		int k = this.executor == null ? 1 : Math.min(threads, n);
+		slices = new Slice[k];
+		tasks = new ArrayList<Slice>(k);
+		for (int i = 0; i < k; i++) {
+			slices[i] = new Slice(i * n / k, (i + 1) * n / k, seed + 1 + i);
+			tasks.add(slices[i]);
+		}
+	}
+
+	public ParticleFilter(int particles, long seed) {
+		this(particles, null, 1, seed);
+	}
+
+	public void reset() {
+		initialized = false;
+		resamples = 0;
+	}
+
+	/**
+	 * @return true once the first fix has been seen
+	 */
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	/**
+	 * Move the particles by one step.
+	 *
+	 * @param compDir the compass heading of the step in degrees
+	 * @param stride the calibrated stride length in m
+	 */
+	public void step(double compDir, double stride) {
+		if (!initialized) {
+			return;
+		}
+		double heading = Math.toRadians(compDir);
+		if (executor == null) {
+			move(0, n, heading, stride, slices[0].random);
+		} else {
+			for (Slice s : slices) {
+				s.weighting = false;
+				s.heading = heading;
+				s.stride = stride;
+			}
+			run();
+		}
+		estimate();
+	}
+
+	private void move(int from, int to, double heading, double stride, Random r) {
+		for (int i = from; i < to; i++) {
+			double h = heading + bias[i] + r.nextGaussian() * HEADING_NOISE;
+			double d = stride * scale[i] * (1 + r.nextGaussian() * STRIDE_NOISE);
+			x[i] += d * Math.sin(h);
+			y[i] += d * Math.cos(h);
+			bias[i] += r.nextGaussian() * BIAS_DRIFT;
+			scale[i] += r.nextGaussian() * SCALE_DRIFT;
+		}
+	}
+
+	/**
+	 * Weight the particles by a GPS fix. The first fix starts the filter.
+	 *
+	 * @param east the fix in m in the frame
+	 * @param north the fix in m in the frame
+	 * @param accuracy the fix's accuracy in m, taken as one standard deviation
+	 */
+	public void fix(double east, double north, double accuracy) {
+		double sigma = Math.max(accuracy, MIN_ACCURACY);
+		if (!initialized) {
+			spawn(east, north, sigma);
+			initialized = true;
+			estimate();
+			return;
+		}
+
+		double inv2var = 1 / (2 * sigma * sigma);
+		double total = 0;
+		if (executor == null) {
+			total = weigh(0, n, east, north, inv2var);
+		} else {
+			for (Slice s : slices) {
+				s.weighting = true;
+				s.east = east;
+				s.north = north;
+				s.inv2var = inv2var;
+			}
+			total = run();
+		}
+
+		if (total <= 0 || Double.isNaN(total)) {
+			// no particle fits the fix, we are lost: start over around it
+			spawn(east, north, sigma);
+			estimate();
+			return;
+		}
+
+		double sumSq = 0;
+		for (int i = 0; i < n; i++) {
+			w[i] /= total;
+			sumSq += w[i] * w[i];
+		}
+		estimate();
+		if (1 / sumSq < RESAMPLE_THRESHOLD * n) {
+			resample();
+		}
+	}
+
+	private double weigh(int from, int to, double east, double north, double inv2var) {
+		double sum = 0;
+		for (int i = from; i < to; i++) {
+			double dx = x[i] - east;
+			double dy = y[i] - north;
+			w[i] *= Math.exp(-(dx * dx + dy * dy) * inv2var);
+			sum += w[i];
+		}
+		return sum;
+	}
+
+	// runs all slices on the executor, returns the sum of their results
+	private double run() {
+		try {
+			double sum = 0;
+			for (Future<Double> f : executor.invokeAll(tasks)) {
+				sum += f.get();
+			}
+			return sum;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return Double.NaN;
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private void spawn(double east, double north, double sigma) {
+		for (int i = 0; i < n; i++) {
+			x[i] = east + random.nextGaussian() * sigma;
+			y[i] = north + random.nextGaussian() * sigma;
+			bias[i] = random.nextGaussian() * INITIAL_BIAS;
+			scale[i] = 1 + random.nextGaussian() * INITIAL_SCALE;
+			w[i] = 1.0 / n;
+		}
+	}
+
+	/**
+	 * Systematic resampling: one random offset, then n evenly spaced picks along the
+	 * cumulative weights. Copies into the scratch arrays and swaps them in.
+	 */
+	private void resample() {
+		double step = 1.0 / n;
+		double u = random.nextDouble() * step;
+		double cumulative = w[0];
+		int j = 0;
+		for (int i = 0; i < n; i++) {
+			while (u > cumulative && j < n - 1) {
+				j++;
+				cumulative += w[j];
+			}
+			nx[i] = x[j];
+			ny[i] = y[j];
+			nbias[i] = bias[j];
+			nscale[i] = scale[j];
+			u += step;
+		}
+
+		double[] t;
+		t = x; x = nx; nx = t;
+		t = y; y = ny; ny = t;
+		t = bias; bias = nbias; nbias = t;
+		t = scale; scale = nscale; nscale = t;
+		for (int i = 0; i < n; i++) {
+			w[i] = step;
+		}
+		resamples++;
+	}
+
+	private void estimate() {
+		double sx = 0, sy = 0, sb = 0, ss = 0, total = 0;
+		for (int i = 0; i < n; i++) {
+			sx += w[i] * x[i];
+			sy += w[i] * y[i];
+			sb += w[i] * bias[i];
+			ss += w[i] * scale[i];
+			total += w[i];
+		}
+		meanX = sx / total;
+		meanY = sy / total;
+		meanBias = sb / total;
+		meanScale = ss / total;
+
+		double var = 0;
+		for (int i = 0; i < n; i++) {
+			double dx = x[i] - meanX;
+			double dy = y[i] - meanY;
+			var += w[i] * (dx * dx + dy * dy);
+		}
+		spread = Math.sqrt(var / total);
+	}
+
+	public int getParticles() {
+		return n;
+	}
+
+	public int getResamples() {
+		return resamples;
+	}
+
+	/**
+	 * @return the estimated position in m east in the frame
+	 */
+	public double getEast() {
+		return meanX;
+	}
+
+	/**
+	 * @return the estimated position in m north in the frame
+	 */
+	public double getNorth() {
+		return meanY;
+	}
+
+	/**
+	 * @return the estimated compass error in degrees, added to the compass heading
+	 */
+	public double getHeadingBias() {
+		return Math.toDegrees(meanBias);
+	}
+
+	/**
+	 * @return the estimated factor between the true and the calibrated stride
+	 */
+	public double getStrideScale() {
+		return meanScale;
+	}
+
+	/**
+	 * @return the weighted standard deviation of the particle positions in m
+	 */
+	public double getSpread() {
+		return spread;
+	}
+}
@@ -0,0 +1,125 @@
+package de.uvwxy.footpath.core;
+
+/**
+ * The original FootPath detection: a step is detected if the filtered z value dropped by
+ * more than peak within the last five samples.
+ *
+ * In adaptive mode the fixed peak is replaced by a threshold derived from the running
+ * mean and variance of the filtered z values, so it follows changes in phone placement
+ * and walking speed. The fixed peak then only sets a lower bound.
+ *
+ * @author Paul Smith
+ *
+ */
+public class PeakStepDetector implements StepDetector {
+	// threshold = ADAPTIVE_K standard deviations of the filtered z values
+	public static final double ADAPTIVE_K = 1.0;
+	// time constant of the running statistics in ms, the weight of a sample follows from
+	// the time since the one before, so it is the same at any sampling rate
+	public static final double ADAPTIVE_WINDOW_MS = 2000.0;
+	// the threshold never drops below this fraction of peak, so noise is not a step
+	public static final double ADAPTIVE_MIN_RATIO = 0.5;
+
+	private static final int vhSize = 6;
+	private double[] values_history = new double[vhSize];
+	private int vhPointer = 0;
+
+	private double peak;
+	// Derive the threshold from running statistics instead of using peak
+	private final boolean adaptive;
+	private double zMean = 0.0;
+	private double zVar = 0.0;
+	private boolean zStatsSet = false;
+	private long lastSampleMs;
+
+	public PeakStepDetector(double peak, boolean adaptive) {
+		this.peak = peak;
+		this.adaptive = adaptive;
+	}
+
+	@Override
+	public String getName() {
+		return adaptive ? StepDetectors.ADAPTIVE : StepDetectors.PEAK;
+	}
+
+	@Override
+	public void setPeak(double peak) {
+		this.peak = peak;
+	}
+
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * @return the peak size the next sample is compared against
+	 */
+	public double getThreshold() {
+		if (!adaptive) {
+			return peak;
+		}
+		return Math.max(ADAPTIVE_K * Math.sqrt(zVar), ADAPTIVE_MIN_RATIO * peak);
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < vhSize; i++) {
+			values_history[i] = 0.0;
+		}
+		vhPointer = 0;
+		zMean = 0.0;
+		zVar = 0.0;
+		zStatsSet = false;
+	}
+
+	@Override
+	public void addSample(long now_ms, double z) {
+		values_history[vhPointer % vhSize] = z;
+		vhPointer++;
+		vhPointer = vhPointer % vhSize;
+		if (adaptive) {
+			updateStats(now_ms, z);
+		}
+	}
+
+	/**
+	 * Exponentially weighted running mean and variance, O(1) per sample. A sample weighs
+	 * 1 - exp(-dt / ADAPTIVE_WINDOW_MS), about 1/60 at 30 Hz and 1/100 at 50 Hz.
+	 */
+	private void updateStats(long now_ms, double z) {
+		if (!zStatsSet) {
+			zMean = z;
+			zVar = 0.0;
+			zStatsSet = true;
+			lastSampleMs = now_ms;
+			return;
+		}
+		double dt = Math.max(0, Math.min(now_ms - lastSampleMs, ADAPTIVE_WINDOW_MS));
+		lastSampleMs = now_ms;
+		double alpha = 1.0 - Math.exp(-dt / ADAPTIVE_WINDOW_MS);
+		double diff = z - zMean;
+		double incr = alpha * diff;
+		zMean += incr;
+		zVar = (1.0 - alpha) * (zVar + diff * incr);
+	}
+
+	@Override
+	public boolean usesTimeout() {
+		return true;
+	}
+
+	@Override
+	public boolean checkForStep() {
+		int lookahead = 5;
+		double diff = getThreshold();
+
+		for (int t = 1; t <= lookahead; t++) {
+			if ((values_history[(vhPointer - 1 - t + vhSize + vhSize) % vhSize] -
+					values_history[(vhPointer - 1 + vhSize) % vhSize]
+			                   > diff)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
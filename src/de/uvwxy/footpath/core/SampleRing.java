@@ -0,0 +1,110 @@
+package de.uvwxy.footpath.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded single producer / single consumer queue of sensor samples, stored in primitive
+ * arrays so nothing is allocated per sample. One thread may call offer(), one other thread
+ * may call drain(). The ordered writes of the head and tail counters publish the sample
+ * values safely between the two threads without locks.
+ *
+ * If the consumer falls behind and the ring is full, new samples are dropped and counted.
+ *
+ * @author Paul Smith
+ *
+ */
+public class SampleRing {
+
+	/**
+	 * Receives the samples taken from the ring.
+	 */
+	public interface Sink {
+		public void onSample(int type, long time, float x, float y, float z);
+	}
+
+	private final int mask;
+	private final int[] type;
+	private final long[] time;
+	private final float[] x, y, z;
+
+	// next slot to write, only written by the producer
+	private final AtomicLong head = new AtomicLong(0);
+	// next slot to read, only written by the consumer
+	private final AtomicLong tail = new AtomicLong(0);
+	// producer local copy of tail, saves reading the shared counter on every offer
+	private long tailCache = 0;
+	private volatile long dropped = 0;
+
+	/**
+	 * @param capacity the number of samples held, rounded up to a power of two
+	 */
+	public SampleRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mask = size - 1;
+		type = new int[size];
+		time = new long[size];
+		x = new float[size];
+		y = new float[size];
+		z = new float[size];
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return the number of samples dropped because the ring was full
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Add a sample, producer thread only.
+	 *
+	 * @return false if the ring is full and the sample was dropped
+	 */
+	public boolean offer(int type, long time, float x, float y, float z) {
+		long h = head.get();
+		if (h - tailCache > mask) {
+			tailCache = tail.get();
+			if (h - tailCache > mask) {
+				dropped++;
+				return false;
+			}
+		}
+		int i = (int) h & mask;
+		this.type[i] = type;
+		this.time[i] = time;
+		this.x[i] = x;
+		this.y[i] = y;
+		this.z[i] = z;
+		// publish the slot
+		head.lazySet(h + 1);
+		return true;
+	}
+
+	/**
+	 * Hand all available samples to the sink in order, consumer thread only.
+	 *
+	 * @return the number of samples handed over
+	 */
+	public int drain(Sink sink) {
+		long t = tail.get();
+		long h = head.get();
+		for (long n = t; n < h; n++) {
+			int i = (int) n & mask;
+			sink.onSample(type[i], time[i], x[i], y[i], z[i]);
+		}
+		// free the slots
+		tail.lazySet(h);
+		return (int) (h - t);
+	}
+
+	/**
+	 * Drop all samples, consumer thread only, or any thread while no consumer runs.
+	 */
+	public void clear() {
+		tail.lazySet(head.get());
+	}
+}
@@ -0,0 +1,204 @@
+package de.uvwxy.footpath.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A recorded sensor trace, decoded into primitive columns. One row holds the time stamp
+ * and the accelerometer, magnetometer and (optionally) gyroscope values of one sample.
+ *
+ * Traces are read from CSV text with one sample per line:
+ * time_ms, ax, ay, az, mx, my, mz[, gx, gy, gz]
+ * Empty lines and lines starting with # are skipped. The gyroscope columns have to be
+ * present in all lines or in none. Ring files written by TraceRecorder can be read as well.
+ *
+ * A decoded trace is never modified, so it can be shared between threads.
+ *
+ * @author Paul Smith
+ *
+ */
+public class SensorTrace {
+	private String name;
+	private int size = 0;
+	private long[] time;
+	private float[] ax, ay, az;
+	private float[] mx, my, mz;
+	private float[] gx, gy, gz;
+	private boolean hasGyro = false;
+
+	public SensorTrace(String name, int capacity) {
+		this.name = name;
+		allocate(Math.max(capacity, 16));
+	}
+
+	private void allocate(int capacity) {
+		time = grow(time, capacity);
+		ax = grow(ax, capacity);
+		ay = grow(ay, capacity);
+		az = grow(az, capacity);
+		mx = grow(mx, capacity);
+		my = grow(my, capacity);
+		mz = grow(mz, capacity);
+		if (hasGyro) {
+			gx = grow(gx, capacity);
+			gy = grow(gy, capacity);
+			gz = grow(gz, capacity);
+		}
+	}
+
+	private static long[] grow(long[] old, int capacity) {
+		long[] buf = new long[capacity];
+		if (old != null) {
+			System.arraycopy(old, 0, buf, 0, Math.min(old.length, capacity));
+		}
+		return buf;
+	}
+
+	private static float[] grow(float[] old, int capacity) {
+		float[] buf = new float[capacity];
+		if (old != null) {
+			System.arraycopy(old, 0, buf, 0, Math.min(old.length, capacity));
+		}
+		return buf;
+	}
+
+	/**
+	 * Append a sample, only used while the trace is being decoded.
+	 */
+	public void add(long time_ms, float ax, float ay, float az, float mx, float my, float mz) {
+		if (hasGyro) {
+			throw new IllegalStateException("gyroscope values missing");
+		}
+		put(time_ms, ax, ay, az, mx, my, mz);
+	}
+
+	/**
+	 * Append a sample with gyroscope values, only used while the trace is being decoded.
+	 */
+	public void add(long time_ms, float ax, float ay, float az, float mx, float my, float mz,
+			float gx, float gy, float gz) {
+		if (!hasGyro) {
+			if (size > 0) {
+				throw new IllegalStateException("gyroscope values missing in earlier samples");
+			}
+			hasGyro = true;
+			allocate(time.length);
+		}
+		put(time_ms, ax, ay, az, mx, my, mz);
+		this.gx[size - 1] = gx;
+		this.gy[size - 1] = gy;
+		this.gz[size - 1] = gz;
+	}
+
+	private void put(long time_ms, float ax, float ay, float az, float mx, float my, float mz) {
+		if (size == time.length) {
+			allocate(size * 2);
+		}
+		this.time[size] = time_ms;
+		this.ax[size] = ax;
+		this.ay[size] = ay;
+		this.az[size] = az;
+		this.mx[size] = mx;
+		this.my[size] = my;
+		this.mz[size] = mz;
+		size++;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long time(int i) { return time[i]; }
+	public float ax(int i) { return ax[i]; }
+	public float ay(int i) { return ay[i]; }
+	public float az(int i) { return az[i]; }
+	public float mx(int i) { return mx[i]; }
+	public float my(int i) { return my[i]; }
+	public float mz(int i) { return mz[i]; }
+	public float gx(int i) { return gx[i]; }
+	public float gy(int i) { return gy[i]; }
+	public float gz(int i) { return gz[i]; }
+
+	/**
+	 * @return true if the trace has gyroscope values
+	 */
+	public boolean hasGyro() {
+		return hasGyro;
+	}
+
+	/**
+	 * @return the duration of the trace in ms
+	 */
+	public long duration() {
+		return size == 0 ? 0 : time[size - 1] - time[0];
+	}
+
+	/**
+	 * Read a CSV trace or a TraceRecorder ring file.
+	 */
+	public static SensorTrace read(File file) throws IOException {
+		if (TraceRecorder.isRing(file)) {
+			return TraceRecorder.read(file);
+		}
+		return readCsv(file);
+	}
+
+	public static SensorTrace readCsv(File file) throws IOException {
+		FileReader in = new FileReader(file);
+		try {
+			// roughly 60 bytes per line
+			return readCsv(file.getName(), in, (int) Math.min(file.length() / 60 + 16, Integer.MAX_VALUE));
+		} finally {
+			in.close();
+		}
+	}
+
+	public static SensorTrace readCsv(String name, Reader reader, int capacity) throws IOException {
+		SensorTrace trace = new SensorTrace(name, capacity);
+		BufferedReader br = new BufferedReader(reader, 1 << 16);
+		String line;
+		int lineNo = 0;
+		while ((line = br.readLine()) != null) {
+			lineNo++;
+			line = line.trim();
+			if (line.length() == 0 || line.charAt(0) == '#') {
+				continue;
+			}
+			String[] f = line.split(",");
+			if (f.length < 7) {
+				throw new IOException(name + ":" + lineNo + ": expected 7 columns, got " + f.length);
+			}
+			try {
+				long t = Long.parseLong(f[0].trim());
+				float ax = Float.parseFloat(f[1].trim());
+				float ay = Float.parseFloat(f[2].trim());
+				float az = Float.parseFloat(f[3].trim());
+				float mx = Float.parseFloat(f[4].trim());
+				float my = Float.parseFloat(f[5].trim());
+				float mz = Float.parseFloat(f[6].trim());
+				if (f.length >= 10) {
+					trace.add(t, ax, ay, az, mx, my, mz,
+							Float.parseFloat(f[7].trim()), Float.parseFloat(f[8].trim()), Float.parseFloat(f[9].trim()));
+				} else {
+					trace.add(t, ax, ay, az, mx, my, mz);
+				}
+			} catch (IllegalStateException e) {
+				throw new IOException(name + ":" + lineNo + ": " + e.getMessage());
+			} catch (NumberFormatException e) {
+				if (trace.size() == 0) {
+					// header line
+					continue;
+				}
+				throw new IOException(name + ":" + lineNo + ": " + e.getMessage());
+			}
+		}
+		return trace;
+	}
+}
@@ -9,50 +9,59 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.util.Log;
-import de.uvwxy.footpath.ToolBox;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 
 /**
  * This class is fed with data from the Accelerometer and Compass sensors. If a step is detected on the acc
  * data it calls the trigger function on its interface StepTrigger, with the given direction.
- * 
+ *
  * Usage:
  * Create an object: stepDetection = new StepDetection(this, this, a, peak, step_timeout_ms);
+ *
+ * By default samples are taken every INTERVAL_MS by a timer. In event driven mode
+ * (see setEventDriven) every accelerometer event is filtered and checked for a step
+ * directly, time stamped with the sensor's own event time.
+ *
+ * The detection itself is done by a StepDetectionEngine, this class only connects it
+ * to the Android sensors. Sensor events are delivered on their own HandlerThread, so a
+ * busy UI thread can not delay them. In event driven mode the engine runs on that thread;
+ * in timer mode the events are handed to the timer thread through a SampleRing and the
+ * engine runs on the timer thread. Either way the engine is only used by one thread.
  * @author Paul Smith
  *
  */
 public class StepDetection {
-	public final long INTERVAL_MS = 1000/30;
-	
-	// Hold an interface to notify the outside world of detected steps
-	private StepTrigger st;
+	public final long INTERVAL_MS = StepDetectionEngine.INTERVAL_MS;
+	// Nominal rate of SENSOR_DELAY_GAME, used when sampling on events
+	public static final long EVENT_RATE_HZ = 50;
+
 	// Context needed to get access to sensor service
 	private Context context;
-	
+	// The Android independent step detection
+	private StepDetectionEngine engine;
+
 	private static SensorManager sm;					// Holds references to the SensorManager
 	List<Sensor> lSensor;								// List of all sensors
 
-//	private double compassValue = -1.0;					// Last compass value
-	
-	private static final int vhSize = 6;
-	private double[] values_history = new double[vhSize];
-	private int vhPointer = 0;
-	
-	private double a;
-	private double peak;
-	private int step_timeout_ms;
-	private long last_step_ts = 0;
-//	private double old_z = 0.0;
-	
-	// last acc is low pass filtered
-	private double[] lastAcc = new double[] {0.0, 0.0, 0.0};
-	// last comp is untouched
-	private double[] lastComp = new double[] {0.0, 0.0, 0.0};
-	
-	private int round = 0;
-
-    private float[] mGravity;
-    private float[] mGeomagneticField;
+	// Register the gyroscope and fuse it into the heading
+	private boolean gyroFusion = false;
+	// Run detection on each accelerometer event instead of the timer
+	private boolean eventDriven = false;
+	// Thread the sensor events are delivered on
+	private HandlerThread sensorThread;
+	// Hands sensor values from the sensor thread to the timer thread in timer mode
+	private final SampleRing ring = new SampleRing(1024);
+	private final SampleRing.Sink ringSink = new SampleRing.Sink() {
+		@Override
+		public void onSample(int type, long time, float x, float y, float z) {
+			forward(type, time, x, y, z);
+		}
+	};
+	// Offset from SensorEvent.timestamp (ns, device dependent base) to wall clock ms
+	private long eventOffsetMs = 0;
+	private boolean eventOffsetSet = false;
 
 	/**
 	 * Handles sensor events. Updates the sensor
@@ -65,72 +74,119 @@ public class StepDetection {
 
 		@Override
 		public void onSensorChanged(SensorEvent event) {
-			switch (event.sensor.getType()) {
-                case Sensor.TYPE_ACCELEROMETER:
-                    st.dataHookAcc(System.currentTimeMillis(), event.values[0], event.values[1], event.values[2]);
-                    mGravity = event.values.clone();
-
-                    // just update the oldest z value
-                    lastAcc[0] = ToolBox.lowpassFilter(lastAcc[0], event.values[0], a);
-                    lastAcc[1] = ToolBox.lowpassFilter(lastAcc[1], event.values[1], a);
-                    lastAcc[2] = ToolBox.lowpassFilter(lastAcc[2], event.values[2], a);
-                    break;
-                case Sensor.TYPE_ORIENTATION: //deprecated in API V8, so no more of this
-                    break;
-                case Sensor.TYPE_MAGNETIC_FIELD:
-                    mGeomagneticField = event.values.clone();
-                    break;
-                default:
+			int type = event.sensor.getType();
+			if (eventDriven) {
+				long now_ms = eventTimeMs(event.timestamp);
+				forward(type, now_ms, event.values[0], event.values[1], event.values[2]);
+				if (type == Sensor.TYPE_ACCELEROMETER) {
+					// compass values are those of the last magnetometer event
+					engine.update(now_ms);
+				}
+			} else {
+				ring.offer(type, System.currentTimeMillis(), event.values[0], event.values[1], event.values[2]);
 			}
-
-            if (mGravity != null && mGeomagneticField != null){
-                float rotationMatrix[] = new float[16];
-                float orientation[] = new float[3];
-
-                SensorManager.getRotationMatrix(rotationMatrix, null, mGravity, mGeomagneticField);
-                SensorManager.getOrientation(rotationMatrix, orientation);
-
-                lastComp[0] = Math.toDegrees(orientation[0]); //azimuth
-                lastComp[1] = Math.toDegrees(orientation[1]); //pitch
-                lastComp[2] = Math.toDegrees(orientation[2]); //roll
-
-                st.dataHookComp(System.currentTimeMillis(), lastComp[0], lastComp[1], lastComp[2]);
-            }
 		}
 	};
-	
+
+	/**
+	 * Pass a sensor value to the engine, on the thread that owns the engine.
+	 */
+	private void forward(int type, long now_ms, float x, float y, float z) {
+		switch (type) {
+            case Sensor.TYPE_ACCELEROMETER:
+                engine.onAccelerometer(now_ms, x, y, z);
+                break;
+            case Sensor.TYPE_ORIENTATION: //deprecated in API V8, so no more of this
+                break;
+            case Sensor.TYPE_MAGNETIC_FIELD:
+                engine.onMagneticField(now_ms, x, y, z);
+                break;
+            case Sensor.TYPE_GYROSCOPE:
+                engine.onGyroscope(now_ms, x, y, z);
+                break;
+            default:
+		}
+	}
+
 	public double getA() {
-		return a;
+		return engine.getA();
 	}
 
 	public double getPeak() {
-		return peak;
+		return engine.getPeak();
 	}
 
 	public int getStep_timeout_ms() {
-		return step_timeout_ms;
+		return engine.getStep_timeout_ms();
 	}
 
 	public void setA(double a) {
-		this.a = a;
+		engine.setA(a);
 	}
 
 	public void setPeak(double peak) {
-		this.peak = peak;
+		engine.setPeak(peak);
 	}
 
 	public void setStep_timeout_ms(int stepTimeoutMs) {
-		step_timeout_ms = stepTimeoutMs;
+		engine.setStep_timeout_ms(stepTimeoutMs);
+	}
+
+	public StepDetector getDetector() {
+		return engine.getDetector();
+	}
+
+	/**
+	 * Replace the algorithm deciding on steps, see StepDetectors.
+	 */
+	public void setDetector(StepDetector detector) {
+		engine.setDetector(detector);
+	}
+
+	public boolean isGyroFusion() {
+		return gyroFusion;
+	}
+
+	/**
+	 * Fuse the gyroscope into the heading, see HeadingFilter. Only takes effect on the
+	 * next call to load(), and only if the device has a gyroscope.
+	 */
+	public void setGyroFusion(boolean gyroFusion) {
+		this.gyroFusion = gyroFusion;
+	}
+
+	public boolean isEventDriven() {
+		return eventDriven;
+	}
+
+	/**
+	 * Switch between timer sampling and sampling on each accelerometer event.
+	 * Only takes effect on the next call to load().
+	 *
+	 * @param eventDriven true to run detection on each accelerometer event
+	 */
+	public void setEventDriven(boolean eventDriven) {
+		this.eventDriven = eventDriven;
+	}
+
+	/**
+	 * @return the number of samples per second the detection runs on
+	 */
+	public long getSampleRate() {
+		return eventDriven ? EVENT_RATE_HZ : 1000/INTERVAL_MS;
 	}
 
 	public StepDetection(Context context, StepTrigger st, double a, double peak, int step_timeout_ms){
 		this.context = context;
-		this.st = st;
-		this.a = a;
-		this.peak = peak;
-		this.step_timeout_ms = step_timeout_ms;
+		this.engine = new StepDetectionEngine(st, a, peak, step_timeout_ms);
+	}
+
+	public StepDetection(Context context, StepTrigger st, double a, double peak, int step_timeout_ms,
+			boolean eventDriven){
+		this(context, st, a, peak, step_timeout_ms);
+		this.eventDriven = eventDriven;
 	}
-	
+
 	/**
 	 * Enable step detection
 	 */
@@ -139,96 +195,98 @@ public class StepDetection {
 		sm = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
 		lSensor = sm.getSensorList(Sensor.TYPE_ALL);
 
+		boolean hasGyroscope = false;
+		for (Sensor aLSensor : lSensor) {
+			hasGyroscope |= aLSensor.getType() == Sensor.TYPE_GYROSCOPE;
+		}
+		engine.setGyroFusion(gyroFusion && hasGyroscope);
+		engine.reset();
+		// no consumer runs any more, unload() waited for the last tick
+		ring.clear();
+		eventOffsetSet = false;
+
+		// an absolute priority, THREAD_PRIORITY_MORE_FAVORABLE is only a step to add to one
+		sensorThread = new HandlerThread("SensorThread", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+		sensorThread.start();
+		Handler sensorHandler = new Handler(sensorThread.getLooper());
+
         for (Sensor aLSensor : lSensor) {
-            // Register only compass and accelerometer
+            // Register only compass and accelerometer, and the gyroscope if it is fused in
             if (aLSensor.getType() == Sensor.TYPE_ACCELEROMETER
-                    || aLSensor.getType() == Sensor.TYPE_MAGNETIC_FIELD) {
-                sm.registerListener(mySensorEventListener, aLSensor, SensorManager.SENSOR_DELAY_GAME);
+                    || aLSensor.getType() == Sensor.TYPE_MAGNETIC_FIELD
+                    || (aLSensor.getType() == Sensor.TYPE_GYROSCOPE && engine.isGyroFusion())) {
+                sm.registerListener(mySensorEventListener, aLSensor, SensorManager.SENSOR_DELAY_GAME,
+                        sensorHandler);
             }
         }
-		
+
+		if (eventDriven) {
+			// Steps are checked in the sensor callback, no timer needed
+			return;
+		}
+
 		// Register timer
 		timer = new Timer("UpdateData", false);
-		TimerTask task = new TimerTask(){
+		tick = new TimerTask(){
 
 			@Override
 			public void run() {
-				updateData();
+				// held while ticking, so unload() can wait for the last tick
+				synchronized (this) {
+					// the timer sees the values of all events before the tick
+					ring.drain(ringSink);
+					engine.update(System.currentTimeMillis());
+				}
 			}
 
 		};
-		timer.schedule(task, 0, INTERVAL_MS);
+		timer.schedule(tick, 0, INTERVAL_MS);
 	}
 
 	/**
-	 * Disable step detection
+	 * Disable step detection. Returns once neither the sensor thread nor the timer thread
+	 * runs any more, so load() can start over with the ring and the engine, and whatever
+	 * the StepTrigger hooks write to can be closed.
 	 */
 	public void unload(){
-		timer.cancel();
-		timer.purge();
-		timer = null;
+		if (timer != null) {
+			timer.cancel();
+			timer.purge();
+			timer = null;
+			// a tick that was running when cancelled ends before this lock is free
+			synchronized (tick) {
+				tick = null;
+			}
+		}
 		sm.unregisterListener(mySensorEventListener);
+		if (sensorThread != null) {
+			sensorThread.quit();
+			// a callback in progress ends before the thread does
+			try {
+				sensorThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			sensorThread = null;
+		}
 	}
-			
+
 	/**
-	 * This is called every INTERVAL_MS ms from the TimerTask. 
+	 * Converts a SensorEvent time stamp to wall clock milliseconds. The time base of
+	 * event time stamps differs between devices, so the offset is fixed on the first event.
+	 *
+	 * @param timestamp_ns the event time stamp in nanoseconds
+	 * @return the time stamp in ms, comparable to System.currentTimeMillis()
 	 */
-	private void updateData(){
-		// Get current time for time stamps
-		long now_ms = System.currentTimeMillis();
-		
-		// Create local value for compass and old_z, such that it is consistent during logs
-		// (It might change in between, which is circumvented by this)
-
-		// array.clone() does not work here!!
-		// this does not work as well!!
-//		double[] oldAcc = {lastAcc[0],lastAcc[1],lastAcc[2]};
-//		double[] oldComp = {lastComp[0],lastComp[1],lastComp[2]};
-		double[] oldAcc = new double[3];
-		System.arraycopy(lastAcc, 0, oldAcc, 0, 3);
-		double[] oldComp = new double[3];
-		System.arraycopy(lastComp, 0, oldComp, 0, 3);
-		double lCompass = oldComp[0];
-		double lOld_z = oldAcc[2];
-		st.timedDataHook(now_ms, oldAcc, oldComp);
-		
-		addData(lOld_z);
-		
-		// Check if a step is detected upon data
-		if((now_ms - last_step_ts) > step_timeout_ms && checkForStep(peak)){
-			// Set latest detected step to "now"
-			last_step_ts = now_ms;
-			// Call algorithm for navigation/updating position
-			st.trigger(now_ms, lCompass);
-			Log.i("FOOTPATH", "Detected step  in  round = " + round  + " @ "+ now_ms);
-		
+	private long eventTimeMs(long timestamp_ns) {
+		long event_ms = timestamp_ns / 1000000L;
+		if (!eventOffsetSet) {
+			eventOffsetMs = System.currentTimeMillis() - event_ms;
+			eventOffsetSet = true;
 		}
-		round++;
-	}
-
-	private void addData(double value){
-		values_history[vhPointer % vhSize] = value;
-		vhPointer++;
-		vhPointer = vhPointer % vhSize;
+		return event_ms + eventOffsetMs;
 	}
-	
-	private boolean checkForStep(double peakSize) {
-		// Add value to values_history
-
-		int lookahead = 5;
-		double diff = peakSize;
 
-		for( int t = 1; t <= lookahead; t++){
-			if((values_history[(vhPointer - 1 - t + vhSize + vhSize) % vhSize] - 
-					values_history[(vhPointer - 1 + vhSize) % vhSize]
-			                   > diff)){
-				Log.i("FOOTPATH", "Detected step with t = " + t + ", diff = " + diff + " < " + (values_history[(vhPointer - 1 - t + vhSize + vhSize) % vhSize] - 
-						values_history[(vhPointer - 1 + vhSize) % vhSize]));
-				return true;
-			}
-		}
-		return false;
-	}
-	
 	Timer timer;
+	private TimerTask tick;
 }
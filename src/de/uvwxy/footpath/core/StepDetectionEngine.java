@@ -0,0 +1,383 @@
+package de.uvwxy.footpath.core;
+
+/**
+ * The step detection without any dependencies on Android. It is fed with raw accelerometer
+ * and magnetometer values and calls the trigger function on its interface StepTrigger, with
+ * the compass bearing, each time a step is detected.
+ *
+ * Usage:
+ * Create an object: engine = new StepDetectionEngine(st, a, peak, step_timeout_ms);
+ * Feed sensor values with onAccelerometer()/onMagneticField() and call update() for each
+ * sample to check for a step, or use sample() to do all three at once.
+ *
+ * The engine low pass filters the values, computes the compass bearing and applies
+ * step_timeout_ms to detectors that use it. Whether a sample completes a step is decided by
+ * a StepDetector, the original peak detection unless another one is set with setDetector().
+ * A second detector can be run on the same samples with setCompanion(), e.g. to compare
+ * both on one walk.
+ *
+ * With gyroscope fusion (setGyroFusion) the compass bearing comes from a HeadingFilter:
+ * the heading is integrated from onGyroscope() values and corrected from the magnetometer
+ * every HeadingFilter.CORRECTION_INTERVAL_MS, so the rotation matrix is only computed at
+ * that rate instead of on every sensor value.
+ *
+ * The engine is not thread safe, all calls have to come from the same thread (or be
+ * synchronized externally).
+ *
+ * @author Paul Smith
+ *
+ */
+public class StepDetectionEngine {
+	// Sampling interval of the timer driven mode
+	public static final long INTERVAL_MS = 1000/30;
+	// Gravity on earth, used to reject free fall in the rotation matrix
+	private static final float GRAVITY_EARTH = 9.80665f;
+
+	// Hold an interface to notify the outside world of detected steps
+	private StepTrigger st;
+	// Decides whether a sample completes a step
+	private StepDetector detector;
+
+	// optional second detector run on the same samples
+	private StepDetector companion = null;
+	private StepTrigger companionTrigger = null;
+	private long companion_last_step_ts = 0;
+
+	private double a;
+	private double peak;
+	private int step_timeout_ms;
+	private long last_step_ts = 0;
+
+	// last acc is low pass filtered
+	private double[] lastAcc = new double[] {0.0, 0.0, 0.0};
+	// last comp is untouched
+	private double[] lastComp = new double[] {0.0, 0.0, 0.0};
+
+	private int round = 0;
+
+	// raw sensor values, copied into these buffers so nothing is allocated per sample
+	private final float[] gravity = new float[3];
+	private final float[] geomagnetic = new float[3];
+	private boolean hasGravity = false;
+	private boolean hasGeomagnetic = false;
+	private final float[] rotationMatrix = new float[9];
+
+	// integrate the gyroscope for the heading, correct it from the magnetometer
+	private boolean gyroFusion = false;
+	private final HeadingFilter headingFilter = new HeadingFilter();
+
+	// snapshots handed to timedDataHook, reused for every sample
+	private final double[] oldAcc = new double[3];
+	private final double[] oldComp = new double[3];
+
+	public StepDetectionEngine(StepTrigger st, double a, double peak, int step_timeout_ms) {
+		this.st = st;
+		this.a = a;
+		this.peak = peak;
+		this.step_timeout_ms = step_timeout_ms;
+		this.detector = new PeakStepDetector(peak, false);
+	}
+
+	public double getA() {
+		return a;
+	}
+
+	public double getPeak() {
+		return peak;
+	}
+
+	public int getStep_timeout_ms() {
+		return step_timeout_ms;
+	}
+
+	public void setA(double a) {
+		this.a = a;
+	}
+
+	public void setPeak(double peak) {
+		this.peak = peak;
+		detector.setPeak(peak);
+		if (companion != null) {
+			companion.setPeak(peak);
+		}
+	}
+
+	public void setStep_timeout_ms(int stepTimeoutMs) {
+		step_timeout_ms = stepTimeoutMs;
+	}
+
+	public StepDetector getDetector() {
+		return detector;
+	}
+
+	/**
+	 * Replace the detector deciding on steps. It gets the current peak and is reset.
+	 *
+	 * @param detector e.g. one created by StepDetectors.create()
+	 */
+	public void setDetector(StepDetector detector) {
+		this.detector = detector;
+		detector.setPeak(peak);
+		detector.reset();
+	}
+
+	/**
+	 * Run a second detector on the same samples. Its steps are reported to the given
+	 * trigger, which may be the same as the one of this engine or a separate one to
+	 * compare the two detectors.
+	 *
+	 * @param companion the detector, null to remove it
+	 * @param trigger notified of the steps found by the detector
+	 */
+	public void setCompanion(StepDetector companion, StepTrigger trigger) {
+		this.companion = companion;
+		this.companionTrigger = trigger;
+		companion_last_step_ts = 0;
+		if (companion != null) {
+			companion.setPeak(peak);
+			companion.reset();
+		}
+	}
+
+	public boolean isGyroFusion() {
+		return gyroFusion;
+	}
+
+	/**
+	 * Take the heading from the gyroscope, corrected from the magnetometer at a low rate,
+	 * instead of the magnetometer alone. Needs onGyroscope() values.
+	 */
+	public void setGyroFusion(boolean gyroFusion) {
+		this.gyroFusion = gyroFusion;
+		headingFilter.reset();
+	}
+
+	/**
+	 * @return the number of samples checked for steps so far
+	 */
+	public int getRound() {
+		return round;
+	}
+
+	/**
+	 * Forget all sensor values and history, e.g. before a new session or trace.
+	 */
+	public void reset() {
+		detector.reset();
+		if (companion != null) {
+			companion.reset();
+		}
+		last_step_ts = 0;
+		companion_last_step_ts = 0;
+		for (int i = 0; i < 3; i++) {
+			lastAcc[i] = 0.0;
+			lastComp[i] = 0.0;
+		}
+		hasGravity = false;
+		hasGeomagnetic = false;
+		headingFilter.reset();
+		round = 0;
+	}
+
+	/**
+	 * Feed a new accelerometer value. It is low pass filtered and used for the next
+	 * call of update().
+	 *
+	 * @param now_ms the time stamp of the value
+	 * @param x x-axis
+	 * @param y y-axis
+	 * @param z z-axis
+	 */
+	public void onAccelerometer(long now_ms, float x, float y, float z) {
+		st.dataHookAcc(now_ms, x, y, z);
+		gravity[0] = x;
+		gravity[1] = y;
+		gravity[2] = z;
+		hasGravity = true;
+
+		// just update the oldest z value
+		lastAcc[0] = lowpassFilter(lastAcc[0], x, a);
+		lastAcc[1] = lowpassFilter(lastAcc[1], y, a);
+		lastAcc[2] = lowpassFilter(lastAcc[2], z, a);
+
+		updateCompass(now_ms);
+	}
+
+	/**
+	 * Feed a new magnetometer value.
+	 *
+	 * @param now_ms the time stamp of the value
+	 * @param x x-axis
+	 * @param y y-axis
+	 * @param z z-axis
+	 */
+	public void onMagneticField(long now_ms, float x, float y, float z) {
+		st.dataHookMag(now_ms, x, y, z);
+		geomagnetic[0] = x;
+		geomagnetic[1] = y;
+		geomagnetic[2] = z;
+		hasGeomagnetic = true;
+
+		updateCompass(now_ms);
+	}
+
+	/**
+	 * Feed a new gyroscope value. Only used with gyroscope fusion.
+	 *
+	 * @param now_ms the time stamp of the value
+	 * @param x x-axis rate in rad/s
+	 * @param y y-axis rate in rad/s
+	 * @param z z-axis rate in rad/s
+	 */
+	public void onGyroscope(long now_ms, float x, float y, float z) {
+		if (!gyroFusion) {
+			return;
+		}
+		st.dataHookGyro(now_ms, x, y, z);
+		// the filtered acceleration points up, turning clockwise seen from above is a
+		// negative rotation about it
+		double norm = Math.sqrt(lastAcc[0] * lastAcc[0] + lastAcc[1] * lastAcc[1] + lastAcc[2] * lastAcc[2]);
+		if (norm < 0.1 * GRAVITY_EARTH) {
+			return;
+		}
+		double rate = -(x * lastAcc[0] + y * lastAcc[1] + z * lastAcc[2]) / norm;
+		headingFilter.integrate(now_ms, Math.toDegrees(rate));
+		if (headingFilter.isInitialized()) {
+			lastComp[0] = headingFilter.getHeading();
+		}
+	}
+
+	/**
+	 * Feed one sample of both sensors and check it for a step, as done on each
+	 * accelerometer event in event driven mode.
+	 */
+	public void sample(long now_ms, float ax, float ay, float az, float mx, float my, float mz) {
+		onMagneticField(now_ms, mx, my, mz);
+		onAccelerometer(now_ms, ax, ay, az);
+		update(now_ms);
+	}
+
+	/**
+	 * Same as above with a gyroscope value, for gyroscope fusion.
+	 */
+	public void sample(long now_ms, float ax, float ay, float az, float mx, float my, float mz,
+			float gx, float gy, float gz) {
+		onMagneticField(now_ms, mx, my, mz);
+		onGyroscope(now_ms, gx, gy, gz);
+		onAccelerometer(now_ms, ax, ay, az);
+		update(now_ms);
+	}
+
+	private void updateCompass(long now_ms) {
+		if (gyroFusion && !headingFilter.needsCorrection(now_ms)) {
+			// the gyroscope keeps the heading up to date in between
+			return;
+		}
+		// in free fall or without a field there is no matrix, the last bearing stays
+		if (hasGravity && hasGeomagnetic && getRotationMatrix(rotationMatrix, gravity, geomagnetic)) {
+			double azimuth = Math.toDegrees(Math.atan2(rotationMatrix[1], rotationMatrix[4]));
+			if (gyroFusion) {
+				headingFilter.correct(now_ms, azimuth);
+				azimuth = headingFilter.getHeading();
+			}
+			lastComp[0] = azimuth; //azimuth
+			lastComp[1] = Math.toDegrees(Math.asin(-rotationMatrix[7])); //pitch
+			lastComp[2] = Math.toDegrees(Math.atan2(-rotationMatrix[6], rotationMatrix[8])); //roll
+
+			st.dataHookComp(now_ms, lastComp[0], lastComp[1], lastComp[2]);
+		}
+	}
+
+	/**
+	 * Takes the current filtered values as a sample and checks for a step. This is called
+	 * every INTERVAL_MS ms in timer mode, or on every accelerometer value in event driven
+	 * mode.
+	 *
+	 * @param now_ms the time stamp of the sample
+	 */
+	public void update(long now_ms) {
+		// Create local value for compass and old_z, such that it is consistent during logs
+		// copy into the preallocated snapshots, no allocation per sample
+		System.arraycopy(lastAcc, 0, oldAcc, 0, 3);
+		System.arraycopy(lastComp, 0, oldComp, 0, 3);
+		double lCompass = oldComp[0];
+		double lOld_z = oldAcc[2];
+		st.timedDataHook(now_ms, oldAcc, oldComp);
+
+		detector.addSample(now_ms, lOld_z);
+
+		// Check if a step is detected upon data
+		if (timedOut(detector, now_ms, last_step_ts) && detector.checkForStep()) {
+			// Set latest detected step to "now"
+			last_step_ts = now_ms;
+			// Call algorithm for navigation/updating position
+			st.trigger(now_ms, lCompass);
+		}
+
+		if (companion != null) {
+			companion.addSample(now_ms, lOld_z);
+			if (timedOut(companion, now_ms, companion_last_step_ts) && companion.checkForStep()) {
+				companion_last_step_ts = now_ms;
+				companionTrigger.trigger(now_ms, lCompass);
+			}
+		}
+		round++;
+	}
+
+	// true if the detector may report a step, step_timeout_ms after its last one
+	private boolean timedOut(StepDetector d, long now_ms, long last_ms) {
+		return !d.usesTimeout() || (now_ms - last_ms) > step_timeout_ms;
+	}
+
+	public static double lowpassFilter(double old_value, double new_value, double a) {
+		return old_value + a * (new_value - old_value);
+	}
+
+	/**
+	 * Same as SensorManager.getRotationMatrix() for a 3x3 matrix without inclination. The
+	 * matrix is left untouched if the device is in free fall or close to the magnetic pole.
+	 *
+	 * @param R the 3x3 rotation matrix to fill
+	 * @param gravity accelerometer values
+	 * @param geomagnetic magnetometer values
+	 * @return true on success
+	 */
+	public static boolean getRotationMatrix(float[] R, float[] gravity, float[] geomagnetic) {
+		float Ax = gravity[0];
+		float Ay = gravity[1];
+		float Az = gravity[2];
+		final float normsqA = (Ax * Ax + Ay * Ay + Az * Az);
+		final float freeFallGravitySquared = 0.01f * GRAVITY_EARTH * GRAVITY_EARTH;
+		if (normsqA < freeFallGravitySquared) {
+			// gravity less than 10% of normal value
+			return false;
+		}
+		final float Ex = geomagnetic[0];
+		final float Ey = geomagnetic[1];
+		final float Ez = geomagnetic[2];
+		float Hx = Ey * Az - Ez * Ay;
+		float Hy = Ez * Ax - Ex * Az;
+		float Hz = Ex * Ay - Ey * Ax;
+		final float normH = (float) Math.sqrt(Hx * Hx + Hy * Hy + Hz * Hz);
+		if (normH < 0.1f) {
+			// device is close to free fall (or in space?), or close to
+			// magnetic north pole. Typical values are  > 100.
+			return false;
+		}
+		final float invH = 1.0f / normH;
+		Hx *= invH;
+		Hy *= invH;
+		Hz *= invH;
+		final float invA = 1.0f / (float) Math.sqrt(Ax * Ax + Ay * Ay + Az * Az);
+		Ax *= invA;
+		Ay *= invA;
+		Az *= invA;
+		final float Mx = Ay * Hz - Az * Hy;
+		final float My = Az * Hx - Ax * Hz;
+		final float Mz = Ax * Hy - Ay * Hx;
+		R[0] = Hx; R[1] = Hy; R[2] = Hz;
+		R[3] = Mx; R[4] = My; R[5] = Mz;
+		R[6] = Ax; R[7] = Ay; R[8] = Az;
+		return true;
+	}
+}
@@ -0,0 +1,55 @@
+package de.uvwxy.footpath.core;
+
+/**
+ * A step detection algorithm working on the low pass filtered z-axis acceleration. The
+ * StepDetectionEngine feeds it one value per sample and asks it whether the sample
+ * completes a step; the engine itself applies step_timeout_ms, if the detector uses it,
+ * and reports the step with the compass bearing.
+ *
+ * Implementations must not allocate per sample, see DetectorBenchmark.
+ *
+ * @author Paul Smith
+ *
+ */
+public interface StepDetector {
+
+	/**
+	 * @return the name the detector is registered with in StepDetectors
+	 */
+	public String getName();
+
+	/**
+	 * Set the sensitivity. The meaning depends on the algorithm, but larger values always
+	 * require a stronger signal to detect a step.
+	 *
+	 * @param peak the peak setting from the calibration
+	 */
+	public void setPeak(double peak);
+
+	/**
+	 * Called for every sample before checkForStep().
+	 *
+	 * @param now_ms the time stamp of the sample
+	 * @param z the low pass filtered z-axis acceleration
+	 */
+	public void addSample(long now_ms, double z);
+
+	/**
+	 * Called after addSample() unless the last step was less than step_timeout_ms ago and
+	 * the detector uses the timeout.
+	 *
+	 * @return true if a step is detected upon the samples so far
+	 */
+	public boolean checkForStep();
+
+	/**
+	 * @return false if the detector spaces its steps itself, step_timeout_ms is then not
+	 *         applied to it
+	 */
+	public boolean usesTimeout();
+
+	/**
+	 * Forget all samples, e.g. before a new session or trace.
+	 */
+	public void reset();
+}
@@ -0,0 +1,34 @@
+package de.uvwxy.footpath.core;
+
+/**
+ * Registry of all StepDetector implementations, so they can be chosen by name from the
+ * settings and compared by DetectorBenchmark.
+ *
+ * @author Paul Smith
+ *
+ */
+public class StepDetectors {
+	public static final String PEAK = "peak";
+	public static final String ADAPTIVE = "adaptive";
+	public static final String CADENCE = "cadence";
+
+	// all registered detectors, the first one is the default
+	public static final String[] NAMES = new String[] {PEAK, ADAPTIVE, CADENCE};
+
+	/**
+	 * Create a detector by name. Unknown names give the default detector, so old or broken
+	 * settings never stop step detection.
+	 *
+	 * @param name one of NAMES
+	 * @param peak the peak setting from the calibration
+	 * @return a new detector
+	 */
+	public static StepDetector create(String name, double peak) {
+		if (ADAPTIVE.equals(name)) {
+			return new PeakStepDetector(peak, true);
+		} else if (CADENCE.equals(name)) {
+			return new CadenceDetector(StepDetectionEngine.INTERVAL_MS, peak);
+		}
+		return new PeakStepDetector(peak, false);
+	}
+}
@@ -38,7 +38,28 @@ public interface StepTrigger {
 	public void dataHookComp(long now_ms, double x, double y, double z);
 	
 	/**
-	 * Called each time a sample is used to detect steps
+	 * Called each time the magnetometer sensor values change, with the raw values
+	 * 
+	 * @param now_ms the time stamp of the changed values
+	 * @param x x-axis
+	 * @param y y-axis
+	 * @param z z-axis
+	 */
+	public void dataHookMag(long now_ms, double x, double y, double z);
+	
+	/**
+	 * Called each time the gyroscope sensor values change, only with gyroscope fusion
+	 * 
+	 * @param now_ms the time stamp of the changed values
+	 * @param x x-axis rate in rad/s
+	 * @param y y-axis rate in rad/s
+	 * @param z z-axis rate in rad/s
+	 */
+	public void dataHookGyro(long now_ms, double x, double y, double z);
+	
+	/**
+	 * Called each time a sample is used to detect steps. The arrays are reused for
+	 * every sample, copy the values if they are needed after returning.
 	 * 
 	 * @param now_ms the time stamp of the sample
 	 * @param acc the accelerometer value (z-axis)
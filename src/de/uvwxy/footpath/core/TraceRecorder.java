@@ -0,0 +1,241 @@
+package de.uvwxy.footpath.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records the raw sensor values seen by the StepTrigger data hooks into a ring file, so
+ * field walks can be replayed with TraceReplay and CalibrationSweep.
+ *
+ * The file is preallocated and memory mapped. Every value is one fixed width record:
+ * type (int), time (long), x, y, z (float). A write is a few stores into the mapping, so
+ * the sensor callback neither allocates nor waits for a system call; the kernel writes
+ * the pages back on its own, and they survive if the app is killed. When the ring is full
+ * the oldest records are overwritten.
+ *
+ * Header: magic, version, record size, capacity (ints), records written (long).
+ *
+ * Only one thread may record, which is the case for the hooks: they are all called from
+ * the thread that feeds the StepDetectionEngine.
+ *
+ * @author Paul Smith
+ *
+ */
+public class TraceRecorder {
+	public static final int MAGIC = 0x54425452; // "TBTR"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 24;
+	public static final int RECORD_SIZE = 24;
+
+	// record types
+	public static final int ACC = 1;
+	public static final int MAG = 2;
+	public static final int GYRO = 3;
+	// timedDataHook: filtered acc z, azimuth, pitch
+	public static final int TIMED = 4;
+
+	// offset of the record counter in the header
+	private static final int COUNT_OFFSET = 16;
+
+	private final File file;
+	private final int capacity;
+	private RandomAccessFile raf;
+	private MappedByteBuffer map;
+	private long written = 0;
+
+	/**
+	 * @param file the ring file, replaced by open()
+	 * @param capacity the number of records kept
+	 */
+	public TraceRecorder(File file, int capacity) {
+		// a mapping is limited to 2 GB
+		if (capacity <= 0 || capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE) {
+			throw new IllegalArgumentException("capacity " + capacity);
+		}
+		this.file = file;
+		this.capacity = capacity;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Create and map an empty ring file. Does file I/O, not to be called from the sensor
+	 * thread.
+	 */
+	public void open() throws IOException {
+		close();
+		file.delete();
+		long size = HEADER_SIZE + (long) RECORD_SIZE * capacity;
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(size);
+		map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		map.order(ByteOrder.LITTLE_ENDIAN);
+		map.putInt(0, MAGIC);
+		map.putInt(4, VERSION);
+		map.putInt(8, RECORD_SIZE);
+		map.putInt(12, capacity);
+		map.putLong(COUNT_OFFSET, 0);
+		written = 0;
+	}
+
+	public boolean isOpen() {
+		return map != null;
+	}
+
+	/**
+	 * @return the number of records written since open()
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	public void acc(long now_ms, double x, double y, double z) {
+		put(ACC, now_ms, x, y, z);
+	}
+
+	public void mag(long now_ms, double x, double y, double z) {
+		put(MAG, now_ms, x, y, z);
+	}
+
+	public void gyro(long now_ms, double x, double y, double z) {
+		put(GYRO, now_ms, x, y, z);
+	}
+
+	public void timed(long now_ms, double[] acc, double[] comp) {
+		put(TIMED, now_ms, acc[2], comp[0], comp[1]);
+	}
+
+	private void put(int type, long now_ms, double x, double y, double z) {
+		MappedByteBuffer m = map;
+		if (m == null) {
+			return;
+		}
+		int off = HEADER_SIZE + (int) (written % capacity) * RECORD_SIZE;
+		m.putInt(off, type);
+		m.putLong(off + 4, now_ms);
+		m.putFloat(off + 12, (float) x);
+		m.putFloat(off + 16, (float) y);
+		m.putFloat(off + 20, (float) z);
+		written++;
+		// the record is complete before it is counted
+		m.putLong(COUNT_OFFSET, written);
+	}
+
+	/**
+	 * Write the mapping back and release the file. Not to be called while recording: the
+	 * threads calling acc(), mag(), gyro() and timed() have to be stopped first, e.g. by
+	 * StepDetection.unload(), so their last records are seen here.
+	 */
+	public void close() {
+		if (map != null) {
+			map.force();
+			map = null;
+		}
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+			raf = null;
+		}
+	}
+
+	/**
+	 * @return true if the file starts like a ring file
+	 */
+	public static boolean isRing(File file) throws IOException {
+		if (file.length() < HEADER_SIZE) {
+			return false;
+		}
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			return Integer.reverseBytes(in.readInt()) == MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Decode a ring file into a trace, oldest record first. Each accelerometer record
+	 * becomes one row with the latest magnetometer (and gyroscope) values; rows before the
+	 * first magnetometer value are dropped. Timed records are not needed for a replay and
+	 * are skipped.
+	 */
+	public static SensorTrace read(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = in.getChannel();
+			MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			m.order(ByteOrder.LITTLE_ENDIAN);
+			if (ch.size() < HEADER_SIZE || m.getInt(0) != MAGIC) {
+				throw new IOException(file.getName() + ": not a trace ring file");
+			}
+			if (m.getInt(4) != VERSION || m.getInt(8) != RECORD_SIZE) {
+				throw new IOException(file.getName() + ": unknown trace version " + m.getInt(4));
+			}
+			int cap = m.getInt(12);
+			long count = m.getLong(COUNT_OFFSET);
+			if (cap <= 0 || HEADER_SIZE + (long) RECORD_SIZE * cap > ch.size()) {
+				throw new IOException(file.getName() + ": truncated");
+			}
+
+			long first = Math.max(0, count - cap);
+			int n = (int) (count - first);
+
+			boolean gyro = false;
+			int accs = 0;
+			for (int i = 0; i < n; i++) {
+				int type = m.getInt(HEADER_SIZE + (int) ((first + i) % cap) * RECORD_SIZE);
+				gyro |= type == GYRO;
+				accs += type == ACC ? 1 : 0;
+			}
+
+			SensorTrace trace = new SensorTrace(file.getName(), accs);
+			boolean hasMag = false;
+			float mx = 0, my = 0, mz = 0, gx = 0, gy = 0, gz = 0;
+			for (int i = 0; i < n; i++) {
+				int off = HEADER_SIZE + (int) ((first + i) % cap) * RECORD_SIZE;
+				int type = m.getInt(off);
+				long t = m.getLong(off + 4);
+				float x = m.getFloat(off + 12);
+				float y = m.getFloat(off + 16);
+				float z = m.getFloat(off + 20);
+				switch (type) {
+					case MAG:
+						mx = x;
+						my = y;
+						mz = z;
+						hasMag = true;
+						break;
+					case GYRO:
+						gx = x;
+						gy = y;
+						gz = z;
+						break;
+					case ACC:
+						if (!hasMag) {
+							break;
+						}
+						if (gyro) {
+							trace.add(t, x, y, z, mx, my, mz, gx, gy, gz);
+						} else {
+							trace.add(t, x, y, z, mx, my, mz);
+						}
+						break;
+					default:
+						break;
+				}
+			}
+			return trace;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package de.uvwxy.footpath.core;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Streams recorded sensor traces through a StepDetectionEngine as fast as the CPU allows.
+ * Runs on a plain JVM, e.g.
+ *
+ * java -cp bin de.uvwxy.footpath.core.TraceReplay -a 0.4 -peak 1.2 -timeout 333 walk1.csv walk2.csv
+ *
+ * With -gyro the heading is fused from the gyroscope columns of the traces.
+ * With -detector NAME the engine uses that detector from StepDetectors instead of "peak".
+ * With -compare NAME a second detector is run alongside and its step count printed as well.
+ * With -timer the engine is sampled every INTERVAL_MS of trace time, as StepDetection does
+ * without event driven mode; otherwise every row of the trace is checked for a step.
+ * Traces are CSV files or ring files recorded in the field by TraceRecorder.
+ *
+ * @author Paul Smith
+ *
+ */
+public class TraceReplay {
+	/**
+	 * Counts the steps reported by an engine.
+	 */
+	public static class StepCounter implements StepTrigger {
+		public int steps = 0;
+		public long lastStepMs = 0;
+
+		public void reset() {
+			steps = 0;
+			lastStepMs = 0;
+		}
+
+		@Override
+		public void trigger(long now_ms, double compDir) {
+			steps++;
+			lastStepMs = now_ms;
+		}
+
+		@Override
+		public void dataHookAcc(long now_ms, double x, double y, double z) {}
+
+		@Override
+		public void dataHookComp(long now_ms, double x, double y, double z) {}
+
+		@Override
+		public void dataHookMag(long now_ms, double x, double y, double z) {}
+
+		@Override
+		public void dataHookGyro(long now_ms, double x, double y, double z) {}
+
+		@Override
+		public void timedDataHook(long now_ms, double[] acc, double[] comp) {}
+	}
+
+	/**
+	 * Feed a whole trace to an engine. The engine is reset first.
+	 *
+	 * @param trace the decoded trace
+	 * @param engine the engine, its trigger gets all detected steps
+	 * @param timerSampling sample every INTERVAL_MS like the timer does, instead of every row
+	 */
+	public static void replay(SensorTrace trace, StepDetectionEngine engine, boolean timerSampling) {
+		engine.reset();
+		boolean gyro = trace.hasGyro();
+		int n = trace.size();
+		if (n == 0) {
+			return;
+		}
+		long nextTick = trace.time(0);
+		for (int i = 0; i < n; i++) {
+			long t = trace.time(i);
+			if (timerSampling) {
+				// the timer sees the values of all samples before the tick
+				while (nextTick < t) {
+					engine.update(nextTick);
+					nextTick += StepDetectionEngine.INTERVAL_MS;
+				}
+				engine.onMagneticField(t, trace.mx(i), trace.my(i), trace.mz(i));
+				if (gyro) {
+					engine.onGyroscope(t, trace.gx(i), trace.gy(i), trace.gz(i));
+				}
+				engine.onAccelerometer(t, trace.ax(i), trace.ay(i), trace.az(i));
+			} else if (gyro) {
+				engine.sample(t, trace.ax(i), trace.ay(i), trace.az(i), trace.mx(i), trace.my(i), trace.mz(i),
+						trace.gx(i), trace.gy(i), trace.gz(i));
+			} else {
+				engine.sample(t, trace.ax(i), trace.ay(i), trace.az(i), trace.mx(i), trace.my(i), trace.mz(i));
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		double a = 0.4;
+		double peak = 1.2;
+		int timeout = 333;
+		boolean timer = false;
+		String detector = StepDetectors.PEAK;
+		String compare = null;
+		boolean gyro = false;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i++) {
+			if (args[i].equals("-timer")) {
+				timer = true;
+			} else if (args[i].equals("-gyro")) {
+				gyro = true;
+			} else if (args[i].equals("-detector") && i + 1 < args.length) {
+				detector = args[++i];
+			} else if (args[i].equals("-compare") && i + 1 < args.length) {
+				compare = args[++i];
+			} else if (args[i].equals("-a") && i + 1 < args.length) {
+				a = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-peak") && i + 1 < args.length) {
+				peak = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-timeout") && i + 1 < args.length) {
+				timeout = Integer.parseInt(args[++i]);
+			} else {
+				usage();
+				return;
+			}
+		}
+		if (i == args.length) {
+			usage();
+			return;
+		}
+
+		StepCounter counter = new StepCounter();
+		StepDetectionEngine engine = new StepDetectionEngine(counter, a, peak, timeout);
+		engine.setDetector(StepDetectors.create(detector, peak));
+		engine.setGyroFusion(gyro);
+		StepCounter compareCounter = new StepCounter();
+		if (compare != null) {
+			engine.setCompanion(StepDetectors.create(compare, peak), compareCounter);
+		}
+		long totalSamples = 0;
+		long totalTraceMs = 0;
+		long totalNs = 0;
+		for (; i < args.length; i++) {
+			SensorTrace trace = SensorTrace.read(new File(args[i]));
+			counter.reset();
+			compareCounter.reset();
+			long start = System.nanoTime();
+			replay(trace, engine, timer);
+			long ns = System.nanoTime() - start;
+			System.out.println(trace.getName() + ": " + counter.steps + " steps"
+					+ (compare != null ? " (" + compare + ": " + compareCounter.steps + ")" : "") + ", " + trace.size() + " samples, "
+					+ (trace.duration() / 1000) + " s of trace in " + (ns / 1000000) + " ms");
+			totalSamples += trace.size();
+			totalTraceMs += trace.duration();
+			totalNs += ns;
+		}
+		System.out.println("total: " + totalSamples + " samples, " + (totalTraceMs / 1000) + " s of trace in "
+				+ (totalNs / 1000000) + " ms (" + (totalNs / Math.max(totalSamples, 1)) + " ns/sample)");
+	}
+
+	private static void usage() {
+		System.out.println("usage: TraceReplay [-timer] [-gyro] [-detector NAME] [-compare NAME] [-a A] [-peak PEAK] [-timeout MS] trace.csv...");
+	}
+}
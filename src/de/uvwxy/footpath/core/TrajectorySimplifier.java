@@ -0,0 +1,136 @@
+package de.uvwxy.footpath.core;
+
+/**
+ * Streaming polyline simplification with an error bound, for dropping steps on straight
+ * walks. It keeps the last kept point as an anchor and, for the points offered since, the
+ * sector of directions a line from the anchor may take so that every one of them is within
+ * the tolerance of it (the sleeve of Zhao and Saalfeld). While all points are within the
+ * tolerance of the anchor, any point may follow. After that, a point ends the line if its
+ * direction is outside the sector or it is closer to the anchor than an earlier one (the
+ * walk turned back): the point before it is kept and becomes the new anchor.
+ *
+ * Every dropped point is within the tolerance of the segment between the kept points
+ * around it: the kept end is in the sector of each dropped point, and at least as far from
+ * the anchor, so each dropped point lies beside the segment and not beyond its end. Each
+ * point costs O(1), a point is kept or dropped one point late.
+ *
+ * @author Paul Smith
+ *
+ */
+public class TrajectorySimplifier {
+	private final double tolerance;
+
+	private boolean anchored = false;
+	private double ax, ay; // anchor
+	private boolean hasLast = false;
+	private double lastX, lastY; // the point offered last, the one to keep if the next doesn't fit
+	private boolean bounded = false; // false while all points are within the tolerance of the anchor
+	private double ref; // direction the sector is relative to
+	private double lo, hi; // sector, relative to ref
+	private double maxDist; // of the points offered since the anchor
+
+	/**
+	 * @param tolerance the largest distance of a dropped point to the kept line, in m
+	 */
+	public TrajectorySimplifier(double tolerance) {
+		if (tolerance <= 0) {
+			throw new IllegalArgumentException("tolerance " + tolerance);
+		}
+		this.tolerance = tolerance;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	public void reset() {
+		anchored = false;
+		hasLast = false;
+	}
+
+	public boolean isAnchored() {
+		return anchored;
+	}
+
+	/**
+	 * Start a new line at a point that was kept.
+	 */
+	public void anchor(double x, double y) {
+		ax = x;
+		ay = y;
+		anchored = true;
+		hasLast = false;
+		bounded = false;
+		maxDist = 0;
+	}
+
+	/**
+	 * Offer the next point. If it returns true, the point offered before this one has to be
+	 * kept; the line then starts over there, with this point as its first.
+	 */
+	public boolean offer(double x, double y) {
+		if (!anchored) {
+			anchor(x, y);
+			return false;
+		}
+		if (!hasLast || fits(x, y)) {
+			narrow(x, y);
+			return false;
+		}
+
+		anchor(lastX, lastY);
+		narrow(x, y);
+		return true;
+	}
+
+	private boolean fits(double x, double y) {
+		double dx = x - ax;
+		double dy = y - ay;
+		double d = Math.sqrt(dx * dx + dy * dy);
+		if (!bounded) {
+			// all points so far are within the tolerance of the anchor, so of any line from it
+			return true;
+		}
+		if (d < maxDist) {
+			return false;
+		}
+		double a = wrap(Math.atan2(dy, dx) - ref);
+		return a >= lo && a <= hi;
+	}
+
+	// intersect the sector with the directions that pass within the tolerance of the point
+	private void narrow(double x, double y) {
+		double dx = x - ax;
+		double dy = y - ay;
+		double d = Math.sqrt(dx * dx + dy * dy);
+		maxDist = Math.max(maxDist, d);
+		lastX = x;
+		lastY = y;
+		hasLast = true;
+
+		if (d <= tolerance) {
+			return;
+		}
+		double half = Math.asin(tolerance / d);
+		if (!bounded) {
+			ref = Math.atan2(dy, dx);
+			lo = -half;
+			hi = half;
+			bounded = true;
+		} else {
+			double a = wrap(Math.atan2(dy, dx) - ref);
+			lo = Math.max(lo, a - half);
+			hi = Math.min(hi, a + half);
+		}
+	}
+
+	private static double wrap(double a) {
+		while (a > Math.PI) {
+			a -= 2 * Math.PI;
+		}
+		while (a <= -Math.PI) {
+			a += 2 * Math.PI;
+		}
+		return a;
+	}
+}
@@ -11,6 +11,7 @@ import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.TextView;
 import com.research.siemens.trailblazer.R;
 import de.uvwxy.footpath.core.StepDetection;
+import de.uvwxy.footpath.core.StepDetectors;
 import de.uvwxy.footpath.core.StepTrigger;
 
 /**
@@ -39,6 +40,8 @@ public class Calibrator extends Activity implements StepTrigger {
 	float a;				// value for low pass filter
 	int step_timeout_ms;	// distance in ms between each step
     float stride;           // stride length
+    boolean eventDriven;    // detect steps on each sensor event instead of a timer
+    String detector;        // name of the step detection algorithm
 		
 	OnSeekBarChangeListener sbListener = new OnSeekBarChangeListener(){
 
@@ -75,6 +78,10 @@ public class Calibrator extends Activity implements StepTrigger {
 		peak = getSharedPreferences(CALIBRATION,0).getFloat("peak", 1.2f);
 		step_timeout_ms = getSharedPreferences(CALIBRATION,0).getInt("timeout", 333);
 		stride = getSharedPreferences(CALIBRATION,0).getFloat("stride", 0.74f);
+		eventDriven = getSharedPreferences(CALIBRATION,0).getBoolean("eventDriven", false);
+		boolean adaptive = getSharedPreferences(CALIBRATION,0).getBoolean("adaptive", false);
+		detector = getSharedPreferences(CALIBRATION,0).getString("detector",
+				adaptive ? StepDetectors.ADAPTIVE : StepDetectors.PEAK);
 
 		// Update GUI elements
 		sbPeak.setProgress((int)(peak*10));
@@ -106,6 +113,12 @@ public class Calibrator extends Activity implements StepTrigger {
 	@Override
 	public void dataHookComp(long nowMs, double x, double y, double z) {}
 
+	@Override
+	public void dataHookMag(long nowMs, double x, double y, double z) {}
+
+	@Override
+	public void dataHookGyro(long nowMs, double x, double y, double z) {}
+
 	@Override
 	public void timedDataHook(long nowMs, double[] acc, double[] comp) {svHistory.addTriple(nowMs, acc);}
 
@@ -130,7 +143,8 @@ public class Calibrator extends Activity implements StepTrigger {
 
 		// Load settings after creation of GUI-elements, to set their values
 		loadSettings();
-		stepDetection = new StepDetection(this, this, a, peak, step_timeout_ms);
+		stepDetection = new StepDetection(this, this, a, peak, step_timeout_ms, eventDriven);
+		stepDetection.setDetector(StepDetectors.create(detector, peak));
 		// Add OnSeekBarChangeListener after creation of step detection, because object is used
 		sbPeak.setOnSeekBarChangeListener(sbListener);
 		sbFilter.setOnSeekBarChangeListener(sbListener);
@@ -141,7 +155,7 @@ public class Calibrator extends Activity implements StepTrigger {
 		SurfaceView svOld = (SurfaceView) findViewById(R.id.svHistory);			// get SurfaceView defined in xml
 		LayoutParams lpHistory = svOld.getLayoutParams();						// get its layout params
 		
-		long samples_per_second = 1000/stepDetection.INTERVAL_MS;
+		long samples_per_second = stepDetection.getSampleRate();
 		int history_in_seconds = 4;
 		int samples_per_history = (int)(history_in_seconds * samples_per_second);
 		
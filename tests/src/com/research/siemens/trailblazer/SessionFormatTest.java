@@ -0,0 +1,71 @@
+package com.research.siemens.trailblazer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * fromJSON() only puts a number into a typed column if it comes back
+ * unchanged, this checks that against what the columns decode to.
+ */
+
+public class SessionFormatTest extends TestCase {
+
+    //decoded x of a single step
+    static double roundTrip(double x) throws IOException {
+        SessionFormat.Writer w = new SessionFormat.Writer();
+        w.step(1000, 0, x, 0, 0, 0);
+        final double[] decoded = new double[1];
+        SessionFormat.read(w.toByteArray(), new SessionFormat.Visitor() {
+            public void onStep(long time, double heading, double x, double y, double absX, double absY) {
+                decoded[0] = x;
+            }
+
+            public void onFix(long time, double heading, double latitude, double longitude, double accuracy) {
+            }
+
+            public void onLabel(long time, String content) {
+            }
+
+            public void onEvent(String json) {
+            }
+
+            public void onFrame(double anchorLatitude, double anchorLongitude, double offsetEast,
+                                double offsetNorth) {
+            }
+        });
+        return decoded[0];
+    }
+
+    public void testFractionOfResolutionIsNotExact() {
+        assertTrue(SessionFormat.exact(1.2345, SessionFormat.XY_SCALE));
+        assertTrue(SessionFormat.exact(-35.1234567, SessionFormat.LATLON_SCALE));
+        assertFalse(SessionFormat.exact(0.00001, SessionFormat.XY_SCALE));
+        assertFalse(SessionFormat.exact(1.23456, SessionFormat.XY_SCALE));
+        assertFalse(SessionFormat.exact(-0.0, SessionFormat.XY_SCALE));
+        assertFalse(SessionFormat.exact(Double.NaN, SessionFormat.XY_SCALE));
+        assertFalse(SessionFormat.exact(1e300, SessionFormat.XY_SCALE));
+    }
+
+    //exact() holds for a value if and only if the column gives it back
+    public void testExactMatchesDecoding() throws IOException {
+        Random r = new Random(12);
+        for (int i = 0; i < 20000; i++) {
+            double x;
+            switch (i % 3) {
+                case 0:
+                    x = (r.nextInt(2000000) - 1000000) / SessionFormat.XY_SCALE; //what the recorder writes
+                    break;
+                case 1:
+                    x = (r.nextDouble() - 0.5) * 200; //what a sensor delivers
+                    break;
+                default:
+                    x = Math.rint(r.nextDouble() * 1e6) / 1e5; //one digit too many
+                    break;
+            }
+            boolean same = Double.compare(roundTrip(x), x) == 0;
+            assertEquals("x " + x, same, SessionFormat.exact(x, SessionFormat.XY_SCALE));
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.research.siemens.trailblazer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A session recorded into a journal, then the process killed at every
+ * byte offset of it: what recover() keeps must be exactly the blocks
+ * written completely before the kill.
+ */
+
+public class SessionJournalTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("journal", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    //times of the events of a session, in order
+    static List<Long> times(byte[] session) throws IOException {
+        final List<Long> times = new ArrayList<Long>();
+        if (session.length == 0) {
+            return times;
+        }
+        SessionFormat.read(session, new SessionFormat.Visitor() {
+            public void onStep(long time, double heading, double x, double y, double absX, double absY) {
+                times.add(time);
+            }
+
+            public void onFix(long time, double heading, double latitude, double longitude, double accuracy) {
+                times.add(time);
+            }
+
+            public void onLabel(long time, String content) {
+                times.add(time);
+            }
+
+            public void onEvent(String json) {
+                times.add(-1L);
+            }
+
+            public void onFrame(double anchorLatitude, double anchorLongitude, double offsetEast,
+                                double offsetNorth) {
+            }
+        });
+        return times;
+    }
+
+    static byte[] readFile(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+
+        finally {
+            in.close();
+        }
+    }
+
+    static void writeFile(File f, byte[] data, int length, byte[] tail) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data, 0, length);
+            out.write(tail);
+        }
+
+        finally {
+            out.close();
+        }
+    }
+
+    //record a session the way the app does, committing every COMMIT_EVENTS events
+    private byte[] record(File file) throws IOException {
+        SessionRecorder recorder = new SessionRecorder(file);
+        recorder.start();
+        recorder.event("{\"type\":\"start\"}");
+        for (int i = 1; i <= 600; i++) {
+            recorder.step(1000 + i * 500L, 90, i * 0.7, 0, i * 0.7, 0);
+            if (i % 40 == 0) {
+                recorder.fix(1000 + i * 500L + 1, 90, 35.77, -78.67 + i * 1e-6, 8);
+            }
+            if (i % 150 == 0) {
+                recorder.label(1000 + i * 500L + 2, "Room " + i);
+            }
+        }
+        recorder.finish();
+        return readFile(file);
+    }
+
+    public void testKilledAtEveryOffset() throws IOException {
+        File file = new File(dir, "session.journal");
+        byte[] full = record(file);
+
+        //frame ends, and the events up to each
+        List<Integer> ends = new ArrayList<Integer>();
+        for (int pos = 0; pos < full.length; ) {
+            int len = ((full[pos + 4] & 0xFF) << 24) | ((full[pos + 5] & 0xFF) << 16)
+                    | ((full[pos + 6] & 0xFF) << 8) | (full[pos + 7] & 0xFF);
+            pos += SessionJournal.HEADER + len;
+            ends.add(pos);
+        }
+        assertTrue("blocks " + ends.size(), ends.size() > 5);
+
+        SessionJournal whole = new SessionJournal(file);
+        ByteArrayOutputStream session = new ByteArrayOutputStream();
+        whole.copyBlocks(session);
+        List<Long> all = times(session.toByteArray());
+
+        Random random = new Random(14);
+        File cut = new File(dir, "cut.journal");
+        for (int offset = 0; offset <= full.length; offset++) {
+            //the rest of the file is gone, or garbage the kill left behind
+            byte[] tail = new byte[offset % 3 == 0 ? random.nextInt(40) : 0];
+            random.nextBytes(tail);
+            writeFile(cut, full, offset, tail);
+
+            int expected = 0;
+            for (int end : ends) {
+                if (end <= offset) {
+                    expected = end;
+                }
+            }
+
+            SessionJournal journal = new SessionJournal(cut);
+            SessionJournal.Recovery found = journal.recover();
+            assertEquals("length at " + offset, expected, found.length);
+            assertEquals("file at " + offset, expected, cut.length());
+
+            session.reset();
+            journal.copyBlocks(session);
+            List<Long> kept = times(session.toByteArray());
+            assertEquals("events at " + offset, kept.size(), found.events);
+            assertEquals("prefix at " + offset, all.subList(0, kept.size()), kept);
+        }
+    }
+
+    public void testMoveAsideKeepsEarlierJournals() throws IOException {
+        File file = new File(dir, "session.journal");
+        byte[] first = record(file);
+        File a = new SessionJournal(file).moveAside("session.recovered");
+        record(file);
+        File b = new SessionJournal(file).moveAside("session.recovered");
+
+        assertNotNull(a);
+        assertNotNull(b);
+        assertFalse(a.equals(b));
+        assertFalse(file.exists());
+        assertEquals(first.length, a.length());
+
+        //a journal left by an older version comes first
+        writeFile(new File(dir, "session.recovered"), first, first.length, new byte[0]);
+        List<File> aside = SessionJournal.aside(dir, "session.recovered");
+        assertEquals(3, aside.size());
+        assertEquals("session.recovered", aside.get(0).getName());
+        assertEquals(a, aside.get(1));
+        assertEquals(b, aside.get(2));
+
+        assertNull(new SessionJournal(file).moveAside("session.recovered"));
+    }
+}
@@ -0,0 +1,58 @@
+package com.research.siemens.trailblazer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * What reaches the journal when: events are batched, labels are not.
+ */
+
+public class SessionRecorderTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("recorder", ".journal");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testEventsAreBatched() throws IOException {
+        SessionRecorder recorder = new SessionRecorder(file);
+        recorder.start();
+        recorder.event("{\"type\":\"start\"}");
+        recorder.commit();
+        long started = file.length();
+        assertTrue(started > 0);
+
+        //a fused event per fix must not cost a sync each
+        for (int i = 1; i < SessionRecorder.COMMIT_EVENTS; i++) {
+            recorder.event("{\"type\":\"fused\",\"time\":" + i + "}");
+        }
+        assertEquals(started, file.length());
+
+        recorder.event("{\"type\":\"fused\",\"time\":0}");
+        assertTrue(file.length() > started);
+        assertEquals(1 + SessionRecorder.COMMIT_EVENTS, recorder.getEvents());
+        recorder.finish();
+    }
+
+    public void testLabelIsCommittedRightAway() throws IOException {
+        SessionRecorder recorder = new SessionRecorder(file);
+        recorder.start();
+        recorder.event("{\"type\":\"gps\"}");
+        assertEquals(0, file.length());
+
+        recorder.label(1000, "Room 1");
+        assertTrue(file.length() > 0);
+        assertEquals(2, recorder.getEvents());
+        assertEquals(1, recorder.getLabels());
+        recorder.finish();
+    }
+}
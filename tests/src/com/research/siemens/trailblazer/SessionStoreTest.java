@@ -0,0 +1,235 @@
+package com.research.siemens.trailblazer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * SessionStore across simulated crashes: a fresh store on the same
+ * directory is what the next launch sees.
+ */
+
+public class SessionStoreTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("store", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    static byte[] session(long start, int steps) {
+        SessionFormat.Writer w = new SessionFormat.Writer();
+        for (int i = 0; i < steps; i++) {
+            w.step(start + i * 500, 90, i * 0.7, 0, i * 0.7, 0);
+        }
+        return w.toByteArray();
+    }
+
+    static SessionStore.Entry entry(long id) {
+        SessionStore.Entry e = new SessionStore.Entry();
+        e.id = id;
+        e.start = id;
+        return e;
+    }
+
+    //an old sessions.log with these sessions
+    static byte[] log(byte[]... sessions) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(b);
+        CRC32 crc = new CRC32();
+        for (byte[] session : sessions) {
+            crc.reset();
+            crc.update(session, 0, session.length);
+            out.writeInt(SessionStore.LOG_MAGIC);
+            out.writeInt(session.length);
+            out.writeInt((int) crc.getValue());
+            out.write(session);
+        }
+        out.flush();
+        return b.toByteArray();
+    }
+
+    static void write(File f, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        }
+
+        finally {
+            out.close();
+        }
+    }
+
+    //the file of a deleted or uploaded session, as a crash before removing it leaves it
+    private void restore(SessionStore store, long id, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(store.fileOf(id));
+        try {
+            out.write(data);
+        }
+
+        finally {
+            out.close();
+        }
+    }
+
+    public void testDeletedSessionStaysDeleted() throws IOException {
+        SessionStore store = new SessionStore(dir);
+        byte[] data = session(1000, 50);
+        long kept = store.add(session(500, 10), entry(500)).id;
+        long id = store.add(data, entry(1000)).id;
+        store.delete(id);
+        restore(store, id, data);
+
+        SessionStore next = new SessionStore(dir);
+        assertNull(next.get(id));
+        assertNotNull(next.get(kept));
+        assertEquals(1, next.list().size());
+        assertFalse(next.fileOf(id).exists());
+    }
+
+    public void testUploadedSessionIsNotSentAgain() throws IOException {
+        SessionStore store = new SessionStore(dir);
+        byte[] data = session(1000, 50);
+        long id = store.add(data, entry(1000)).id;
+        store.queue(id);
+        store.markUploaded(id);
+        restore(store, id, data);
+
+        SessionStore next = new SessionStore(dir);
+        assertTrue(next.list().isEmpty());
+        assertFalse(next.fileOf(id).exists());
+    }
+
+    //the manifest is rewritten now and then, the gone entry must survive that while its file is there
+    public void testGoneEntrySurvivesManifestRewrite() throws IOException {
+        SessionStore store = new SessionStore(dir);
+        byte[] data = session(1000, 50);
+        long id = store.add(data, entry(1000)).id;
+        store.delete(id);
+        restore(store, id, data);
+
+        //enough changes to another session to rewrite the manifest several times
+        long other = store.add(session(5000, 10), entry(5000)).id;
+        for (int i = 0; i < 200; i++) {
+            store.setAcked(other, store.get(other).bytes, i);
+        }
+
+        SessionStore next = new SessionStore(dir);
+        assertNull(next.get(id));
+        assertNotNull(next.get(other));
+        assertFalse(next.fileOf(id).exists());
+    }
+
+    //a session file without any entry is still picked up
+    public void testFileWithoutEntryIsAdded() throws IOException {
+        SessionStore store = new SessionStore(dir);
+        store.list();
+        restore(store, 7000, session(7000, 20));
+
+        SessionStore next = new SessionStore(dir);
+        assertEquals(1, next.list().size());
+        assertEquals(20, next.list().get(0).events);
+    }
+
+    //the session just saved counts against the budget and stays, even when it isn't the latest
+    public void testBudgetKeepsSessionJustAdded() throws IOException {
+        SessionStore store = new SessionStore(dir);
+        long a = store.add(session(1000, 200), entry(1000)).id;
+        long b = store.add(session(90000, 200), entry(90000)).id;
+        long added = store.add(session(5000, 400), entry(5000)).id;
+        long size = store.get(added).bytes;
+
+        SessionStore.Report report = store.enforceBudget(size + 10, SessionStore.OLDEST_FIRST, added);
+        assertTrue(report.total <= size + 10);
+        assertEquals(report.total, store.totalBytes());
+        assertEquals(2, report.evicted.size());
+        assertNull(store.get(a));
+        assertNull(store.get(b));
+        assertEquals(size, store.get(added).bytes);
+        assertFalse(store.get(added).compacted);
+    }
+
+    //over budget on its own, the session just saved is still kept
+    public void testBudgetNeverDropsSessionJustAdded() throws IOException {
+        SessionStore store = new SessionStore(dir);
+        long added = store.add(session(1000, 400), entry(1000)).id;
+
+        SessionStore.Report report = store.enforceBudget(10, SessionStore.LOWEST_VALUE_FIRST, added);
+        assertFalse(report.dropped());
+        assertNotNull(store.get(added));
+    }
+
+    public void testImportLegacyLog() throws IOException {
+        File legacy = new File(dir, "sessions.log");
+        write(legacy, log(session(1000, 10), session(2000, 20), session(3000, 30)));
+
+        SessionStore store = new SessionStore(new File(dir, "store"));
+        assertEquals(3, store.importLegacy(legacy));
+        assertEquals(3, store.list().size());
+        assertFalse(legacy.exists());
+        assertFalse(new File(legacy.getPath() + SessionStore.IMPORTED).exists());
+    }
+
+    //killed after adding the second session, before counting it as moved
+    public void testImportAgainAfterCrash() throws IOException {
+        byte[][] sessions = {session(1000, 10), session(1000, 10), session(2000, 20), session(3000, 30)};
+        File legacy = new File(dir, "sessions.log");
+        write(legacy, log(sessions));
+
+        File storeDir = new File(dir, "store");
+        SessionStore store = new SessionStore(storeDir);
+        store.add(sessions[0], SessionStore.describe(sessions[0]));
+        store.add(sessions[1], SessionStore.describe(sessions[1]));
+        //the first one was counted, the second not yet
+        File progress = new File(legacy.getPath() + SessionStore.IMPORTED);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(progress));
+        out.writeInt(1);
+        out.close();
+
+        SessionStore next = new SessionStore(storeDir);
+        assertEquals(3, next.importLegacy(legacy));
+        //the two equal sessions stay two, nothing else is doubled
+        assertEquals(4, next.list().size());
+        assertFalse(progress.exists());
+
+        //and once more with the old store back, as if deleting it hadn't happened
+        write(legacy, log(sessions));
+        write(progress, new byte[]{0, 0, 0, 4});
+        assertEquals(0, new SessionStore(storeDir).importLegacy(legacy));
+        assertEquals(4, new SessionStore(storeDir).list().size());
+    }
+
+    //a corrupt frame ends the import instead of being parsed
+    public void testImportStopsAtCorruptFrame() throws IOException {
+        byte[] first = log(session(1000, 10));
+        byte[] data = log(session(1000, 10), session(2000, 20), session(3000, 30));
+        data[first.length + SessionStore.HEADER + 7] ^= 0x55;
+        File legacy = new File(dir, "sessions.log");
+        write(legacy, data);
+
+        SessionStore store = new SessionStore(new File(dir, "store"));
+        assertEquals(1, store.importLegacy(legacy));
+        assertEquals(1, store.list().size());
+        assertEquals(10, store.list().get(0).events);
+        assertFalse(legacy.exists());
+    }
+}
@@ -0,0 +1,89 @@
+package com.research.siemens.trailblazer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * The body read through getContent() is the one writeTo() sends.
+ */
+
+public class SessionUploadEntityTest extends TestCase {
+
+    private File dir;
+    private SessionStore store;
+    private long id;
+    private long bytes;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("upload", "");
+        dir.delete();
+        dir.mkdirs();
+        store = new SessionStore(dir);
+        SessionStore.Entry e = store.add(SessionStoreTest.session(1000, 500), SessionStoreTest.entry(1000));
+        id = e.id;
+        bytes = e.bytes;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    static byte[] read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1000];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+
+        finally {
+            in.close();
+        }
+    }
+
+    public void testContentIsWhatIsWritten() throws IOException {
+        for (boolean gzip : new boolean[]{false, true}) {
+            SessionUploadEntity body = new SessionUploadEntity(store, id, 0, bytes, gzip);
+            ByteArrayOutputStream written = new ByteArrayOutputStream();
+            body.writeTo(written);
+
+            //larger than the pipe, so reading and writing take turns
+            byte[] content = read(body.getContent());
+            assertTrue(gzip || content.length > SessionUploadEntity.BUFFER);
+            assertTrue("gzip " + gzip, Arrays.equals(written.toByteArray(), content));
+
+            //and again, a request can be retried
+            assertTrue(Arrays.equals(content, read(body.getContent())));
+        }
+    }
+
+    public void testErrorReachesReader() throws IOException {
+        SessionUploadEntity body = new SessionUploadEntity(store, id, 0, bytes, false);
+        store.delete(id);
+
+        try {
+            read(body.getContent());
+            fail();
+        }
+
+        catch (IOException e) {
+            //the session is gone
+        }
+    }
+}
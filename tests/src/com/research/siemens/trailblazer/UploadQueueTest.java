@@ -0,0 +1,300 @@
+package com.research.siemens.trailblazer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sessions uploaded to a local stand-in server that answers every chunk
+ * after a fixed delay, like a server across a mobile link. All chunks
+ * have to arrive, and more lanes have to get more through in the same
+ * time.
+ */
+
+public class UploadQueueTest extends TestCase {
+
+    private static final int SESSIONS = 8;
+    private static final int BLOCKS = 6; // of about CHUNK_BYTES / 2 each, three chunks per session
+    private static final int STEPS = 3000; // per block
+    private static final long LATENCY = 80;
+
+    private File dir;
+    private SessionStore store;
+    private StandIn server;
+
+    /**
+     * Answers each request with 200 after LATENCY ms and keeps the
+     * connection alive. Reads fixed length and chunked bodies, and keeps
+     * the headers and the body of every request.
+     */
+
+    static class StandIn implements Runnable {
+        final ServerSocket socket;
+        final long latency;
+        final List<Map<String, String>> headers = new ArrayList<Map<String, String>>();
+        final List<byte[]> bodies = new ArrayList<byte[]>();
+
+        StandIn(long latency) throws IOException {
+            this.socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            this.latency = latency;
+            new Thread(this, "stand-in").start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + socket.getLocalPort() + "/sessions";
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    final Socket s = socket.accept();
+                    new Thread(new Runnable() {
+                        public void run() {
+                            serve(s);
+                        }
+                    }, "stand-in connection").start();
+                }
+            }
+
+            catch (IOException e) {
+                //closed
+            }
+        }
+
+        private void serve(Socket s) {
+            try {
+                InputStream in = s.getInputStream();
+                OutputStream out = s.getOutputStream();
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    Map<String, String> h = new HashMap<String, String>();
+                    while ((line = readLine(in)) != null && line.length() > 0) {
+                        int colon = line.indexOf(':');
+                        h.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                    }
+                    if ("100-continue".equalsIgnoreCase(h.get("expect"))) {
+                        out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("US-ASCII"));
+                        out.flush();
+                    }
+                    byte[] body = readBody(in, h);
+
+                    Thread.sleep(latency);
+                    synchronized (this) {
+                        headers.add(h);
+                        bodies.add(body);
+                    }
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n"
+                            + "Content-Length: 2\r\n\r\n{}").getBytes("US-ASCII"));
+                    out.flush();
+                }
+            }
+
+            catch (Exception e) {
+                //the client went away
+            }
+
+            finally {
+                try {
+                    s.close();
+                }
+
+                catch (IOException e) {
+                    //nothing to do
+                }
+            }
+        }
+
+        private static byte[] readBody(InputStream in, Map<String, String> h) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if ("chunked".equalsIgnoreCase(h.get("transfer-encoding"))) {
+                int n;
+                while ((n = Integer.parseInt(readLine(in).split(";")[0].trim(), 16)) > 0) {
+                    copy(in, body, n);
+                    readLine(in);
+                }
+                //trailers
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                }
+            } else if (h.containsKey("content-length")) {
+                copy(in, body, Integer.parseInt(h.get("content-length")));
+            }
+            return body.toByteArray();
+        }
+
+        private static void copy(InputStream in, ByteArrayOutputStream out, int n) throws IOException {
+            byte[] buf = new byte[8192];
+            while (n > 0) {
+                int r = in.read(buf, 0, Math.min(n, buf.length));
+                if (r < 0) {
+                    throw new IOException("body cut short");
+                }
+                out.write(buf, 0, r);
+                n -= r;
+            }
+        }
+
+        //a CRLF terminated line, null at the end of the stream
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder b = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (c == '\n') {
+                    int end = b.length();
+                    if (end > 0 && b.charAt(end - 1) == '\r') {
+                        b.setLength(end - 1);
+                    }
+                    return b.toString();
+                }
+                b.append((char) c);
+            }
+            return b.length() > 0 ? b.toString() : null;
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("upload", "");
+        dir.delete();
+        dir.mkdirs();
+        store = new SessionStore(dir);
+        server = new StandIn(LATENCY);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    //a session of BLOCKS blocks, the way SessionRecorder commits them
+    static byte[] session(long start) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int b = 0; b < BLOCKS; b++) {
+            byte[] block = SessionStoreTest.session(start + b * STEPS * 500L, STEPS);
+            out.write(block, 0, block.length);
+        }
+        return out.toByteArray();
+    }
+
+    private long fill(long first) throws IOException {
+        long bytes = 0;
+        for (int i = 0; i < SESSIONS; i++) {
+            long start = first + i * 100000000L;
+            bytes += store.add(session(start), SessionStoreTest.entry(start)).bytes;
+        }
+        return bytes;
+    }
+
+    //upload everything in the store, the stats of the run
+    private UploadQueue.Stats upload(int parallel, boolean gzip) throws Exception {
+        final CountDownLatch idle = new CountDownLatch(1);
+        final int[] result = new int[2];
+        UploadQueue queue = new UploadQueue(store, UploadQueue.pooledClient(parallel, 5000, 5000), server.url(),
+                "test", parallel, new UploadQueue.Listener() {
+            public void onUploaded(SessionStore.Entry session) {
+            }
+
+            public void onIdle(int uploaded, int pending, String reply) {
+                result[0] = uploaded;
+                result[1] = pending;
+                idle.countDown();
+            }
+        });
+
+        try {
+            queue.start(gzip);
+            assertTrue("run did not end", idle.await(60, TimeUnit.SECONDS));
+            assertEquals(SESSIONS, result[0]);
+            assertEquals(0, result[1]);
+            return queue.getStats();
+        }
+
+        finally {
+            queue.shutdown();
+        }
+    }
+
+    public void testChunksArriveOnceAndInOrder() throws Exception {
+        long bytes = fill(1000);
+        UploadQueue.Stats stats = upload(3, true);
+
+        assertTrue(store.list().isEmpty());
+        assertEquals(server.bodies.size(), stats.requests);
+        assertEquals(0, stats.failures);
+        assertEquals(3 * SESSIONS, stats.requests);
+
+        //per session the chunks cover its bytes once, one after the other
+        Map<String, Long> next = new HashMap<String, Long>();
+        long total = 0;
+        for (int i = 0; i < server.headers.size(); i++) {
+            Map<String, String> h = server.headers.get(i);
+            String id = h.get("x-session-id");
+            long offset = Long.parseLong(h.get("x-chunk-offset"));
+            long length = Long.parseLong(h.get("x-chunk-length"));
+            Long expected = next.get(id);
+            assertEquals(expected == null ? 0 : expected.longValue(), offset);
+            next.put(id, offset + length);
+            total += length;
+
+            assertEquals("gzip", h.get("content-encoding"));
+            assertEquals("test-" + id + "-" + h.get("x-session-bytes") + "-" + offset, h.get("idempotency-key"));
+
+            byte[] json = gunzip(server.bodies.get(i));
+            assertTrue(json.length > length);
+        }
+        assertEquals(SESSIONS, next.size());
+        assertEquals(bytes, total);
+    }
+
+    public void testMoreLanesMoreThroughput() throws Exception {
+        fill(1000);
+        UploadQueue.Stats one = upload(1, false);
+        fill(10000000000L);
+        UploadQueue.Stats four = upload(4, false);
+
+        System.out.println("parallel 1: " + one);
+        System.out.println("parallel 4: " + four);
+
+        assertEquals(one.requests, four.requests);
+        //latency bound, so close to four times as fast; leave room for a busy machine
+        assertTrue(one.throughput() + " vs " + four.throughput() + " KB/s",
+                four.throughput() > 1.5 * one.throughput());
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,40 @@
+package de.uvwxy.footpath.core;
+
+import junit.framework.TestCase;
+
+/**
+ * Counts the steps of synthetic walks and runs through the engine with the cadence detector
+ * and the usual step_timeout_ms.
+ *
+ * @author Paul Smith
+ *
+ */
+public class CadenceDetectorTest extends TestCase {
+	private static final int SECONDS = 60;
+
+	// steps found in a minute at the given cadence, sampled at 50 Hz
+	private static int count(double cadence) {
+		TraceReplay.StepCounter counter = new TraceReplay.StepCounter();
+		StepDetectionEngine engine = new StepDetectionEngine(counter, 0.5, 0.5, 333);
+		engine.setDetector(StepDetectors.create(StepDetectors.CADENCE, 0.5));
+		for (int i = 0; i < SECONDS * 50; i++) {
+			double s = i / 50.0;
+			float az = (float) (9.81 + 4 * Math.sin(2 * Math.PI * cadence * s));
+			engine.sample(i * 20, 0.2f, 0.1f, az, 0f, 30f, -20f);
+		}
+		return counter.steps;
+	}
+
+	public void testWalking() {
+		int steps = count(1.8);
+		assertEquals(1.8 * SECONDS, steps, 0.1 * 1.8 * SECONDS);
+	}
+
+	// faster than one step per step_timeout_ms, up to MAX_CADENCE_HZ
+	public void testRunning() {
+		double cadence = 3.4;
+		assertTrue(cadence > 1000.0 / 333 && cadence < CadenceDetector.MAX_CADENCE_HZ);
+		int steps = count(cadence);
+		assertEquals(cadence * SECONDS, steps, 0.1 * cadence * SECONDS);
+	}
+}
@@ -0,0 +1,64 @@
+package de.uvwxy.footpath.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Sweeps a small grid over a synthetic walk, once with its step count and once with only
+ * the distance walked.
+ *
+ * @author Paul Smith
+ *
+ */
+public class CalibrationSweepTest extends TestCase {
+	private static final int STEPS = 120;
+
+	// walking at 2 steps/s for a minute, sampled at 50 Hz
+	private static SensorTrace walk() {
+		SensorTrace trace = new SensorTrace("walk", 3000);
+		for (int i = 0; i < 3000; i++) {
+			double s = i / 50.0;
+			trace.add(i * 20, 0.2f, 0.1f, (float) (9.81 + 3 * Math.sin(2 * Math.PI * 2 * s)), 0f, 30f, -20f);
+		}
+		return trace;
+	}
+
+	private static CalibrationSweep.Result sweep(CalibrationSweep.Sample sample) throws InterruptedException {
+		List<CalibrationSweep.Sample> samples = new ArrayList<CalibrationSweep.Sample>();
+		samples.add(sample);
+		CalibrationSweep sweep = new CalibrationSweep(samples, false);
+		sweep.setGrid(new double[] { 0.3, 0.6 }, CalibrationSweep.range(0.5, 3.0, 0.5), new int[] { 200, 333 });
+		return sweep.run(2);
+	}
+
+	// with the stride length it is walked at, the distance scores like the step count
+	public void testDistanceOnly() throws InterruptedException {
+		SensorTrace trace = walk();
+		CalibrationSweep.Result bySteps = sweep(new CalibrationSweep.Sample(trace, STEPS, -1));
+		CalibrationSweep.Result byDistance = sweep(new CalibrationSweep.Sample(trace, -1,
+				STEPS * CalibrationSweep.DEFAULT_STRIDE));
+
+		assertTrue("error " + bySteps.error, bySteps.error < 0.05);
+		assertEquals(bySteps.error, byDistance.error, 1e-9);
+		assertEquals(bySteps.a, byDistance.a);
+		assertEquals(bySteps.peak, byDistance.peak);
+		assertEquals(bySteps.timeout, byDistance.timeout);
+		// nothing to fit the stride length to
+		assertTrue(Double.isNaN(byDistance.stride));
+	}
+
+	public void testStrideIsFittedToStepsAndDistance() throws InterruptedException {
+		CalibrationSweep.Result r = sweep(new CalibrationSweep.Sample(walk(), STEPS, STEPS * 0.8));
+		assertEquals(0.8, r.stride, 0.05);
+	}
+
+	public void testSampleNeedsStepsOrDistance() {
+		try {
+			new CalibrationSweep.Sample(walk(), -1, -1);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package de.uvwxy.footpath.core;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that a LoopCloser only holds the steps a closure can still touch, and that dropping
+ * the others doesn't change the closures.
+ *
+ * @author Paul Smith
+ *
+ */
+public class LoopCloserTest extends TestCase {
+	private static final double STRIDE = 0.7;
+
+	// walk n steps straight on from the last position, heading in rad from east
+	private static double[] walk(LoopCloser c, long[] t, double[] p, int n, double heading) {
+		for (int i = 0; i < n; i++) {
+			p[0] += STRIDE * Math.cos(heading);
+			p[1] += STRIDE * Math.sin(heading);
+			c.step(t[0]++, p[0], p[1]);
+		}
+		return p;
+	}
+
+	// a square of 40 steps a side whose heading drifts, labelled at both corners it starts at
+	private static boolean square(LoopCloser c, long[] t, double[] p) {
+		c.label("Room 201");
+		for (int side = 0; side < 4; side++) {
+			walk(c, t, p, 40, Math.PI / 2 * side + Math.toRadians(2 * side));
+		}
+		return c.label("room 201 ");
+	}
+
+	public void testWalkWithoutLabelsHoldsOneStep() {
+		LoopCloser c = new LoopCloser();
+		walk(c, new long[] { 1 }, new double[2], 100000, 0.3);
+		assertTrue("held " + c.size(), c.size() <= 256);
+		assertEquals(100000 * STRIDE * Math.cos(0.3), c.getX(), 1e-6);
+	}
+
+	// a long walk before the loop must not change how it is closed
+	public void testDroppedStepsDontChangeClosure() {
+		LoopCloser fresh = new LoopCloser();
+		assertTrue(square(fresh, new long[] { 1 }, new double[2]));
+
+		LoopCloser c = new LoopCloser();
+		long[] t = { 1 };
+		double[] p = walk(c, t, new double[2], 30000, 1);
+		double x0 = c.getX(), y0 = c.getY();
+		long start = t[0] - 1;
+		assertTrue(square(c, t, p));
+
+		assertEquals(fresh.getGapX(), c.getGapX(), 1e-6);
+		assertEquals(fresh.getGapY(), c.getGapY(), 1e-6);
+		assertEquals(fresh.getGapTurn(), c.getGapTurn(), 1e-6);
+		assertEquals(fresh.getX(), c.getX() - x0, 1e-6);
+		assertEquals(fresh.getY(), c.getY() - y0, 1e-6);
+		assertEquals(start, c.getClosedFrom());
+		assertEquals(t[0] - 1, c.getClosedTo());
+		assertTrue("held " + c.size(), c.size() < 1024);
+	}
+
+	public void testLabelBeyondMaxStepsIsForgotten() {
+		LoopCloser c = new LoopCloser();
+		long[] t = { 1 };
+		c.label("Entrance");
+		// out and back, the gap is none at all
+		double[] p = walk(c, t, new double[2], LoopCloser.MAX_STEPS / 2 + 10, 0);
+		walk(c, t, p, LoopCloser.MAX_STEPS / 2 + 10, Math.PI);
+		assertTrue("held " + c.size(), c.size() <= LoopCloser.MAX_STEPS);
+		assertFalse(c.label("Entrance"));
+		assertEquals(0, c.getClosures());
+
+		// a label within the steps held still closes
+		c.label("Stairs");
+		walk(c, t, p, 100, 0);
+		walk(c, t, p, 100, Math.PI);
+		assertTrue(c.label("Stairs"));
+	}
+}
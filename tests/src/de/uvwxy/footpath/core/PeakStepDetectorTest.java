@@ -0,0 +1,40 @@
+package de.uvwxy.footpath.core;
+
+import junit.framework.TestCase;
+
+/**
+ * The adaptive threshold has to follow the signal over the same time at any sampling rate.
+ *
+ * @author Paul Smith
+ *
+ */
+public class PeakStepDetectorTest extends TestCase {
+
+	// threshold after a walk at 2 Hz that gets three times stronger after 20 s, seconds in
+	private static double threshold(int hz, double seconds) {
+		PeakStepDetector d = new PeakStepDetector(0, true);
+		int n = (int) (seconds * hz);
+		for (int i = 0; i < n; i++) {
+			double s = i / (double) hz;
+			double amplitude = s < 20 ? 1 : 3;
+			d.addSample((long) (s * 1000), 9.81 + amplitude * Math.sin(2 * Math.PI * 2 * s));
+		}
+		return d.getThreshold();
+	}
+
+	public void testSteadyWalk() {
+		// one standard deviation of a sine
+		for (int hz : new int[] { 30, 50, 100, 200 }) {
+			assertEquals(hz + " Hz", Math.sqrt(0.5), threshold(hz, 20), 0.1);
+		}
+	}
+
+	public void testFollowsChangeAtAnyRate() {
+		double at30 = threshold(30, 21.5);
+		for (int hz : new int[] { 50, 100, 200 }) {
+			assertEquals(hz + " Hz", at30, threshold(hz, 21.5), 0.1 * at30);
+		}
+		// half way there after 1.5 s
+		assertTrue(at30 > 1.2 && at30 < 2.0);
+	}
+}
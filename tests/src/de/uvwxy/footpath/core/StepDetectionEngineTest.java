@@ -0,0 +1,119 @@
+package de.uvwxy.footpath.core;
+
+import junit.framework.TestCase;
+
+/**
+ * Feeds a long synthetic walk through the StepDetectionEngine with every detector and checks
+ * that the samples allocate nothing, by the bytes the JVM counts for the thread. Skipped where
+ * the JVM doesn't count them, e.g. on a device.
+ *
+ * @author Paul Smith
+ *
+ */
+public class StepDetectionEngineTest extends TestCase {
+	private static final int WARMUP = 20000;
+	private static final int SAMPLES = 300000;
+	// what measuring itself may cost, far less than one object per thousand samples
+	private static final long SLACK = 4096;
+
+	private int steps = 0;
+	private int compass = 0;
+
+	private final StepTrigger trigger = new StepTrigger() {
+		public void trigger(long now_ms, double compDir) {
+			steps++;
+		}
+
+		public void dataHookAcc(long now_ms, double x, double y, double z) {
+		}
+
+		public void dataHookComp(long now_ms, double x, double y, double z) {
+			compass++;
+		}
+
+		public void dataHookMag(long now_ms, double x, double y, double z) {
+		}
+
+		public void dataHookGyro(long now_ms, double x, double y, double z) {
+		}
+
+		public void timedDataHook(long now_ms, double[] acc, double[] comp) {
+		}
+	};
+
+	// bytes allocated by this thread so far, -1 if the JVM doesn't tell; by reflection, Android
+	// has no java.lang.management
+	private static long allocated() {
+		try {
+			Object threads = Class.forName("java.lang.management.ManagementFactory")
+					.getMethod("getThreadMXBean").invoke(null);
+			Class<?> counting = Class.forName("com.sun.management.ThreadMXBean");
+			if (!counting.isInstance(threads)
+					|| !(Boolean) counting.getMethod("isThreadAllocatedMemoryEnabled").invoke(threads)) {
+				return -1;
+			}
+			return (Long) counting.getMethod("getThreadAllocatedBytes", long.class).invoke(threads,
+					Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		} catch (LinkageError e) {
+			return -1;
+		}
+	}
+
+	// walking at 2 steps/s, sampled at 50 Hz, turning slowly
+	private static void walk(StepDetectionEngine engine, long from, int n) {
+		for (int i = 0; i < n; i++) {
+			long t = (from + i) * 20;
+			double s = t / 1000.0;
+			float az = (float) (9.81 + 3 * Math.sin(2 * Math.PI * 2 * s));
+			float heading = (float) (0.05 * s);
+			float mx = (float) (30 * Math.sin(heading)), my = (float) (30 * Math.cos(heading));
+			engine.sample(t, 0.2f, 0.1f, az, mx, my, -20f, 0f, 0f, -0.05f);
+		}
+	}
+
+	public void testSamplesAllocateNothing() {
+		if (allocated() < 0) {
+			return;
+		}
+		for (String name : StepDetectors.NAMES) {
+			for (boolean fusion : new boolean[] { false, true }) {
+				StepDetectionEngine engine = new StepDetectionEngine(trigger, 0.5, 0.5, 333);
+				engine.setDetector(StepDetectors.create(name, 0.5));
+				engine.setCompanion(StepDetectors.create(StepDetectors.PEAK, 0.5), trigger);
+				engine.setGyroFusion(fusion);
+
+				walk(engine, 0, WARMUP);
+				steps = 0;
+				long before = allocated();
+				walk(engine, WARMUP, SAMPLES);
+				long bytes = allocated() - before;
+
+				String what = name + (fusion ? " with gyroscope" : "");
+				assertTrue(what + " found no steps", steps > 0);
+				assertTrue(what + " allocated " + bytes + " bytes for " + SAMPLES + " samples", bytes < SLACK);
+			}
+		}
+	}
+
+	// no bearing from a rotation matrix that could not be computed
+	public void testNoBearingWithoutGravityOrField() {
+		for (boolean fusion : new boolean[] { false, true }) {
+			StepDetectionEngine engine = new StepDetectionEngine(trigger, 0.5, 0.5, 333);
+			engine.setGyroFusion(fusion);
+			compass = 0;
+			// free fall, then no field
+			for (int i = 0; i < 100; i++) {
+				engine.sample(i * 20, 0f, 0f, 0.1f, 0f, 30f, -20f, 0f, 0f, 0f);
+			}
+			for (int i = 100; i < 200; i++) {
+				engine.sample(i * 20, 0.2f, 0.1f, 9.81f, 0f, 0f, 0f, 0f, 0f, 0f);
+			}
+			assertEquals(0, compass);
+
+			engine.sample(5000, 0.2f, 0.1f, 9.81f, 0f, 30f, -20f, 0f, 0f, 0f);
+			assertTrue(compass > 0);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package de.uvwxy.footpath.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Replays random walks through a TrajectorySimplifier and checks every dropped point
+ * against the kept segment around it.
+ *
+ * @author Paul Smith
+ *
+ */
+public class TrajectorySimplifierTest extends TestCase {
+	private static final double TOLERANCE = 0.5;
+
+	// a point near the anchor must not become the end of a line that dropped farther points
+	public void testNearPointAfterFarPoint() {
+		double[][] walk = { { 0, 0 }, { 0.74, 0 }, { 0.1, 0.3 }, { -5, 5 } };
+		assertTrue(worst(walk, TOLERANCE) <= TOLERANCE);
+	}
+
+	public void testTurningBack() {
+		double[][] walk = new double[41][2];
+		for (int i = 0; i <= 40; i++) {
+			walk[i][0] = i <= 20 ? i * 0.7 : (40 - i) * 0.7;
+		}
+		assertTrue(worst(walk, TOLERANCE) <= TOLERANCE);
+	}
+
+	public void testRandomWalks() {
+		Random r = new Random(23);
+		int kept = 0, offered = 0;
+		for (int walk = 0; walk < 200; walk++) {
+			// short steps with heading noise, some sharp turns and shuffles in place
+			double[][] points = new double[500][2];
+			double x = 0, y = 0, h = r.nextDouble() * 2 * Math.PI;
+			double noise = Math.toRadians(1 + r.nextInt(40));
+			for (int i = 1; i < points.length; i++) {
+				if (r.nextDouble() < 0.02) {
+					h += (r.nextDouble() - 0.5) * 2 * Math.PI;
+				}
+				double stride = r.nextDouble() < 0.1 ? r.nextDouble() * 0.3 : 0.5 + r.nextDouble() * 0.4;
+				double a = h + r.nextGaussian() * noise;
+				x += stride * Math.sin(a);
+				y += stride * Math.cos(a);
+				points[i][0] = x;
+				points[i][1] = y;
+			}
+			for (double tolerance : new double[] { 0.1, 0.5, 2 }) {
+				List<Integer> k = keep(points, tolerance);
+				double err = worst(points, k);
+				assertTrue("walk " + walk + " tolerance " + tolerance + ": " + err, err <= tolerance + 1e-9);
+				if (tolerance == TOLERANCE) {
+					kept += k.size();
+					offered += points.length;
+				}
+			}
+		}
+		// still worth it on noisy walks
+		assertTrue(kept + " of " + offered, kept < offered / 2);
+	}
+
+	// indices of the points the simplifier keeps, the last one is kept at the end
+	private static List<Integer> keep(double[][] points, double tolerance) {
+		TrajectorySimplifier s = new TrajectorySimplifier(tolerance);
+		List<Integer> kept = new ArrayList<Integer>();
+		for (int i = 0; i < points.length; i++) {
+			if (!s.isAnchored()) {
+				kept.add(i);
+			}
+			if (s.offer(points[i][0], points[i][1])) {
+				kept.add(i - 1);
+			}
+		}
+		if (kept.get(kept.size() - 1) != points.length - 1) {
+			kept.add(points.length - 1);
+		}
+		return kept;
+	}
+
+	private static double worst(double[][] points, double tolerance) {
+		return worst(points, keep(points, tolerance));
+	}
+
+	// largest distance of a dropped point to the kept segment around it
+	private static double worst(double[][] points, List<Integer> kept) {
+		double worst = 0;
+		for (int j = 1; j < kept.size(); j++) {
+			double[] p = points[kept.get(j - 1)];
+			double[] q = points[kept.get(j)];
+			for (int i = kept.get(j - 1) + 1; i < kept.get(j); i++) {
+				worst = Math.max(worst, distance(points[i], p, q));
+			}
+		}
+		return worst;
+	}
+
+	private static double distance(double[] c, double[] p, double[] q) {
+		double dx = q[0] - p[0], dy = q[1] - p[1];
+		double l = dx * dx + dy * dy;
+		double u = l == 0 ? 0 : ((c[0] - p[0]) * dx + (c[1] - p[1]) * dy) / l;
+		u = Math.max(0, Math.min(1, u));
+		return Math.hypot(c[0] - p[0] - u * dx, c[1] - p[1] - u * dy);
+	}
+}